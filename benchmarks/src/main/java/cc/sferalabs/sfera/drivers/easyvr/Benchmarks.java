@@ -0,0 +1,26 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that the allocation
+ * rate per operation is reported along with the time. Accepts the standard
+ * JMH command line options, e.g.:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar Protocol -f 1 -wi 3 -i 5
+ * </pre>
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,88 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import cc.sferalabs.sfera.io.comm.CommPort;
+import cc.sferalabs.sfera.io.comm.CommPortException;
+import cc.sferalabs.sfera.io.comm.CommPortListener;
+
+/**
+ * Comm port answering command frames synchronously from a reply table,
+ * releasing one reply byte per acknowledgement like the module. Frames with
+ * no reply configured are discarded. The port does not allocate.
+ */
+class MockCommPort extends CommPort {
+
+	private static final byte[][] BYTES = new byte[256][];
+
+	static {
+		for (int i = 0; i < BYTES.length; i++) {
+			BYTES[i] = new byte[] { (byte) i };
+		}
+	}
+
+	private final byte[][] replies = new byte[128][];
+	private CommPortListener listener;
+	private byte[] reply;
+	private int next;
+
+	/**
+	 * Sets the reply to the frames starting with a command letter.
+	 *
+	 * @param command
+	 *            the command letter
+	 * @param reply
+	 *            the reply bytes
+	 */
+	void reply(char command, byte... reply) {
+		replies[command] = reply;
+	}
+
+	/**
+	 * @param b
+	 *            a byte value
+	 * @return a shared single-byte array holding the value
+	 */
+	static byte[] one(int b) {
+		return BYTES[b & 0xFF];
+	}
+
+	@Override
+	public void setParams(int baudRate, int dataBits, int stopBits,
+			int parity, int flowControl) throws CommPortException {
+	}
+
+	@Override
+	public void setListener(CommPortListener listener)
+			throws CommPortException {
+		this.listener = listener;
+	}
+
+	@Override
+	public void removeListener() throws CommPortException {
+		this.listener = null;
+	}
+
+	@Override
+	public void writeBytes(byte[] bytes) throws CommPortException {
+		if (bytes[0] != ' ') {
+			reply = replies[bytes[0] & 0x7F];
+			next = 0;
+		}
+		if (reply != null && next < reply.length) {
+			listener.onRead(one(reply[next++]));
+		}
+	}
+
+	@Override
+	public int readBytes(byte[] b, int off, int len, int timeout)
+			throws CommPortException {
+		throw new CommPortException("Not supported");
+	}
+
+	@Override
+	public void clear() throws CommPortException {
+	}
+
+	@Override
+	public void close() throws CommPortException {
+	}
+}
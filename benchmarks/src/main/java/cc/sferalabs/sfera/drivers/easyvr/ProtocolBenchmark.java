@@ -0,0 +1,67 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the {@link Protocol} codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+	@Param({ "LIGHTS_ON", "ROOM 12 LIGHT 3" })
+	public String label;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(64);
+	private byte[] encoded;
+	private int encodedLength;
+	private int arg = 0;
+
+	@Setup
+	public void setup() {
+		encodedLength = Protocol.encodeLabel(label, buffer);
+		encoded = new byte[encodedLength];
+		buffer.flip();
+		buffer.get(encoded);
+	}
+
+	@Benchmark
+	public byte encodeArg() {
+		arg = (arg + 1) & 31;
+		return Protocol.encodeArg(arg);
+	}
+
+	@Benchmark
+	public int decodeArg() {
+		arg = (arg + 1) & 31;
+		return Protocol.decodeArg((byte) ('@' + arg));
+	}
+
+	@Benchmark
+	public int encodeLabel() {
+		buffer.clear();
+		return Protocol.encodeLabel(label, buffer);
+	}
+
+	@Benchmark
+	public String decodeLabel() {
+		return Protocol.decodeLabel(encoded, 0, encodedLength);
+	}
+}
@@ -0,0 +1,77 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmarks of the recognition state machine driven by
+ * {@link CommunicationHandler#onRead(byte[])}. Continuous recognition is
+ * enabled, so every result re-arms the recognition as in the field; the
+ * handler has no driver, so no event is posted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecognitionBenchmark {
+
+	private static final int GROUP = 1;
+
+	private final byte[] result = MockCommPort.one('r');
+	private final byte[] error = MockCommPort.one('e');
+	private final byte[][] args = { MockCommPort.one('A'),
+			MockCommPort.one('B'), MockCommPort.one('C') };
+	private CommunicationHandler handler;
+	private int i = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		MockCommPort port = new MockCommPort();
+		handler = new CommunicationHandler(null, port,
+				LoggerFactory.getLogger(RecognitionBenchmark.class));
+		handler.start();
+		handler.setContinuous(true, GROUP, true);
+		if (!handler.commandRecogSD(GROUP).get()) {
+			throw new IllegalStateException("Recognition not started");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		handler.close();
+	}
+
+	/**
+	 * A recognized command: result byte and position.
+	 */
+	@Benchmark
+	public void result() {
+		handler.onRead(result);
+		handler.onRead(args[i++ % args.length]);
+	}
+
+	/**
+	 * A recognition error: error byte and two nibbles.
+	 */
+	@Benchmark
+	public void error() {
+		handler.onRead(error);
+		handler.onRead(args[1]);
+		handler.onRead(args[i++ % args.length]);
+	}
+}
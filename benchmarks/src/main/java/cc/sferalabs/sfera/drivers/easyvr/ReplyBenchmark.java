@@ -0,0 +1,69 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmarks of complete command round trips against a {@link MockCommPort}
+ * answering synchronously: queueing on the I/O thread, framing, reply
+ * acknowledgement and decoding. The time includes the hand-off between the
+ * caller and the I/O thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplyBenchmark {
+
+	private CommunicationHandler handler;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		MockCommPort port = new MockCommPort();
+		port.reply('x', (byte) 'x', Protocol.encodeArg(2));
+		// trained twice, no conflict, label "LIGHTS_ON"
+		port.reply('p', (byte) 'd', Protocol.encodeArg(2), Protocol
+				.encodeArg(0), Protocol.encodeArg(9), (byte) 'L', (byte) 'I',
+				(byte) 'G', (byte) 'H', (byte) 'T', (byte) 'S', (byte) '_',
+				(byte) 'O', (byte) 'N');
+		handler = new CommunicationHandler(null, port,
+				LoggerFactory.getLogger(ReplyBenchmark.class));
+		handler.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		handler.close();
+	}
+
+	/**
+	 * Two-byte reply.
+	 */
+	@Benchmark
+	public Integer id() throws Exception {
+		return handler.commandID().get();
+	}
+
+	/**
+	 * Variable-length reply with a label.
+	 */
+	@Benchmark
+	public CommandInfo dumpSD() throws Exception {
+		return handler.commandDumpSD(1, 0).get();
+	}
+}
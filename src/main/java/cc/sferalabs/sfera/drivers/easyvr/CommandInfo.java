@@ -0,0 +1,147 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.Objects;
+
+/**
+ * Immutable description of a custom command as reported by the module.
+ *
+ * @see EasyVR#getCommandInfo(int, int)
+ */
+public class CommandInfo {
+
+	/** Conflict flag: the command is similar to another custom command */
+	public static final int CONFLICT_SD = 8;
+	/** Conflict flag: the command is similar to a built-in word */
+	public static final int CONFLICT_SI = 16;
+
+	private static final int TRAIN_COUNT_MASK = 7;
+
+	private final int trainCount;
+	private final int conflictFlags;
+	private final int conflictPosition;
+	private final String label;
+
+	/**
+	 *
+	 * @param trainCount
+	 *            the number of times the command was trained (0 = untrained)
+	 * @param conflictFlags
+	 *            a combination of {@link #CONFLICT_SD} and
+	 *            {@link #CONFLICT_SI}
+	 * @param conflictPosition
+	 *            the position of the conflicting command or word
+	 * @param label
+	 *            the label of the command
+	 */
+	public CommandInfo(int trainCount, int conflictFlags,
+			int conflictPosition, String label) {
+		this.trainCount = trainCount;
+		this.conflictFlags = conflictFlags;
+		this.conflictPosition = conflictPosition;
+		this.label = label;
+	}
+
+	/**
+	 * Decodes the training information of a dump reply.
+	 *
+	 * @param flags
+	 *            the training information byte (-1 = empty)
+	 * @param conflictPosition
+	 *            the conflicting command position byte
+	 * @param label
+	 *            the label of the command
+	 * @return the command info
+	 */
+	static CommandInfo decode(int flags, int conflictPosition, String label) {
+		if (flags < 0) {
+			return new CommandInfo(0, 0, conflictPosition, label);
+		}
+		return new CommandInfo(flags & TRAIN_COUNT_MASK, flags
+				& (CONFLICT_SD | CONFLICT_SI), conflictPosition, label);
+	}
+
+	/**
+	 * @return the training information byte, as reported by the module (-1 =
+	 *         empty)
+	 */
+	int getFlags() {
+		if (trainCount == 0 && conflictFlags == 0) {
+			return -1;
+		}
+		return trainCount | conflictFlags;
+	}
+
+	/**
+	 * @return the number of times the command was trained (0 = untrained)
+	 */
+	public int getTrainCount() {
+		return trainCount;
+	}
+
+	/**
+	 * @return whether the command has been trained at least once
+	 */
+	public boolean isTrained() {
+		return trainCount > 0;
+	}
+
+	/**
+	 * @return a combination of {@link #CONFLICT_SD} and {@link #CONFLICT_SI}
+	 */
+	public int getConflictFlags() {
+		return conflictFlags;
+	}
+
+	/**
+	 * @return whether the command is similar to another command or word
+	 */
+	public boolean hasConflict() {
+		return conflictFlags != 0;
+	}
+
+	/**
+	 * @return the position of the conflicting command or word, only
+	 *         meaningful if {@link #hasConflict()}
+	 */
+	public int getConflictPosition() {
+		return conflictPosition;
+	}
+
+	/**
+	 * @return the label of the command
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CommandInfo)) {
+			return false;
+		}
+		CommandInfo other = (CommandInfo) obj;
+		return trainCount == other.trainCount
+				&& conflictFlags == other.conflictFlags
+				&& conflictPosition == other.conflictPosition
+				&& Objects.equals(label, other.label);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(trainCount, conflictFlags, conflictPosition,
+				label);
+	}
+
+	/**
+	 * Returns the same representation returned by
+	 * {@link EasyVR#dumpCommand(int, int)}: training information, conflicting
+	 * command position and label, separated with space.
+	 */
+	@Override
+	public String toString() {
+		return getFlags() + " " + conflictPosition + " " + label;
+	}
+}
@@ -0,0 +1,84 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histogram of one command type. Latencies are counted
+ * in power-of-two millisecond buckets: bucket 0 holds latencies below 1 ms
+ * and bucket {@code i} those from 2<sup>i-1</sup> to 2<sup>i</sup> ms, the
+ * last bucket holding anything longer. Updates never lock.
+ */
+class CommandMetrics {
+
+	static final int BUCKETS = 18;
+
+	private final String name;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder protocolErrors = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+	CommandMetrics(String name) {
+		this.name = name;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a completed command.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 * @param success
+	 *            whether the command was successful
+	 */
+	void record(long nanos, boolean success) {
+		count.increment();
+		if (!success) {
+			failures.increment();
+		}
+		totalNanos.add(nanos);
+		long millis = nanos / 1000000L;
+		int bucket = (millis <= 0) ? 0
+				: 64 - Long.numberOfLeadingZeros(millis);
+		buckets[Math.min(bucket, BUCKETS - 1)].increment();
+	}
+
+	void timeout() {
+		timeouts.increment();
+	}
+
+	void protocolError() {
+		protocolErrors.increment();
+	}
+
+	void retry() {
+		retries.increment();
+	}
+
+	void reset() {
+		count.reset();
+		failures.reset();
+		timeouts.reset();
+		protocolErrors.reset();
+		retries.reset();
+		totalNanos.reset();
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+	}
+
+	CommandStats snapshot() {
+		long[] histogram = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram[i] = buckets[i].sum();
+		}
+		return new CommandStats(name, count.sum(), failures.sum(),
+				timeouts.sum(), protocolErrors.sum(), retries.sum(),
+				totalNanos.sum(), histogram);
+	}
+}
@@ -0,0 +1,149 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+/**
+ * Immutable snapshot of the metrics of one command type.
+ *
+ * @see EasyVR#getCommandStats()
+ */
+public class CommandStats {
+
+	private final String name;
+	private final long count;
+	private final long failures;
+	private final long timeouts;
+	private final long protocolErrors;
+	private final long retries;
+	private final long totalNanos;
+	private final long[] histogram;
+
+	public CommandStats(String name, long count, long failures,
+			long timeouts, long protocolErrors, long retries,
+			long totalNanos, long[] histogram) {
+		this.name = name;
+		this.count = count;
+		this.failures = failures;
+		this.timeouts = timeouts;
+		this.protocolErrors = protocolErrors;
+		this.retries = retries;
+		this.totalNanos = totalNanos;
+		this.histogram = histogram.clone();
+	}
+
+	/**
+	 * @return the command type, e.g. "addSD", or "recognitionSD" for the
+	 *         time from arming a recognition to its result
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of completed commands
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the number of commands that failed
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return the number of replies not received in time
+	 */
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return the number of unexpected or malformed replies
+	 */
+	public long getProtocolErrors() {
+		return protocolErrors;
+	}
+
+	/**
+	 * @return the number of retried requests, e.g. unanswered break probes
+	 *         or baud rate fallbacks
+	 */
+	public long getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @return the sum of the latencies in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return the latency histogram: element 0 counts the latencies below 1
+	 *         ms and element {@code i} those from 2<sup>i-1</sup> to
+	 *         2<sup>i</sup> ms, the last element counting anything longer
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	/**
+	 * @return the mean latency in milliseconds
+	 */
+	public double getMeanMillis() {
+		return (count == 0) ? 0 : totalNanos / 1e6 / count;
+	}
+
+	/**
+	 * @return the upper bound in milliseconds of the histogram bucket
+	 *         holding the median latency
+	 */
+	public long getMedianMillis() {
+		return getPercentileMillis(50);
+	}
+
+	/**
+	 * @return the upper bound in milliseconds of the histogram bucket
+	 *         holding the 99th percentile latency
+	 */
+	public long getP99Millis() {
+		return getPercentileMillis(99);
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile (0-100)
+	 * @return the upper bound in milliseconds of the histogram bucket
+	 *         holding the specified percentile, or 0 if no command was
+	 *         recorded
+	 */
+	public long getPercentileMillis(double percentile) {
+		long total = 0;
+		for (long c : histogram) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (histogram.length - 1);
+	}
+
+	@Override
+	public String toString() {
+		return name + " count=" + count + " failures=" + failures
+				+ " timeouts=" + timeouts + " protocolErrors="
+				+ protocolErrors + " retries=" + retries + " mean="
+				+ String.format("%.1f", getMeanMillis()) + "ms p50="
+				+ getMedianMillis() + "ms p99=" + getP99Millis() + "ms";
+	}
+}
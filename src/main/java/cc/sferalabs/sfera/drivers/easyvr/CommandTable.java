@@ -0,0 +1,203 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory mirror of the custom command table of the module. Each group is
+ * held as an immutable array of entries, replaced as a whole on every change,
+ * so readers on any thread never need to lock. Changes are only applied by
+ * the I/O thread of the {@link CommunicationHandler}, after the module has
+ * acknowledged them.
+ */
+class CommandTable {
+
+	private static final CommandInfo[] EMPTY_GROUP = new CommandInfo[0];
+
+	/** The entries of each group, {@code null} until the group is loaded */
+	private final AtomicReferenceArray<CommandInfo[]> groups = new AtomicReferenceArray<>(
+			EasyVR.GROUPS);
+
+	/**
+	 * Label to {@code group * POSITIONS + position} of the first command
+	 * with that label, rebuilt on every change
+	 */
+	private volatile Map<String, Integer> labelIndex = Collections
+			.emptyMap();
+
+	/**
+	 * @param group
+	 *            the group index
+	 * @return the number of commands in the group, or -1 if the group is not
+	 *         loaded
+	 */
+	int count(int group) {
+		CommandInfo[] entries = entries(group);
+		return (entries == null) ? -1 : entries.length;
+	}
+
+	/**
+	 * @param group
+	 *            the group index
+	 * @return whether the group is loaded
+	 */
+	boolean isLoaded(int group) {
+		return entries(group) != null;
+	}
+
+	/**
+	 * @param group
+	 *            the group index
+	 * @param position
+	 *            the command position
+	 * @return the entry at the specified position, or {@code null} if not
+	 *         present or if the group is not loaded
+	 */
+	CommandInfo get(int group, int position) {
+		CommandInfo[] entries = entries(group);
+		if (entries == null || position < 0 || position >= entries.length) {
+			return null;
+		}
+		return entries[position];
+	}
+
+	/**
+	 * @param group
+	 *            the group index
+	 * @return the entries of the group, or {@code null} if the group is not
+	 *         loaded. The returned array must not be modified.
+	 */
+	CommandInfo[] entries(int group) {
+		if (group < 0 || group >= EasyVR.GROUPS) {
+			return null;
+		}
+		return groups.get(group);
+	}
+
+	/**
+	 * @param label
+	 *            the command label, as reported by the module
+	 * @return the location of the first loaded command with the specified
+	 *         label, as {@code group * EasyVR.POSITIONS + position}, or -1 if
+	 *         not found
+	 */
+	int find(String label) {
+		Integer location = labelIndex.get(label);
+		return (location == null) ? -1 : location;
+	}
+
+	/**
+	 * @return the entries of all the groups, or {@code null} if any group is
+	 *         not loaded
+	 */
+	CommandInfo[][] snapshot() {
+		CommandInfo[][] snapshot = new CommandInfo[EasyVR.GROUPS][];
+		for (int g = 0; g < EasyVR.GROUPS; g++) {
+			snapshot[g] = groups.get(g);
+			if (snapshot[g] == null) {
+				return null;
+			}
+		}
+		return snapshot;
+	}
+
+	void load(int group, CommandInfo[] entries) {
+		groups.set(group, entries);
+		reindex();
+	}
+
+	void insert(int group, int position, CommandInfo entry) {
+		CommandInfo[] entries = entries(group);
+		if (entries == null) {
+			return;
+		}
+		if (position < 0 || position > entries.length) {
+			invalidate(group);
+			return;
+		}
+		CommandInfo[] copy = new CommandInfo[entries.length + 1];
+		System.arraycopy(entries, 0, copy, 0, position);
+		copy[position] = entry;
+		System.arraycopy(entries, position, copy, position + 1,
+				entries.length - position);
+		groups.set(group, copy);
+		reindex();
+	}
+
+	void remove(int group, int position) {
+		CommandInfo[] entries = entries(group);
+		if (entries == null) {
+			return;
+		}
+		if (position < 0 || position >= entries.length) {
+			invalidate(group);
+			return;
+		}
+		CommandInfo[] copy = new CommandInfo[entries.length - 1];
+		System.arraycopy(entries, 0, copy, 0, position);
+		System.arraycopy(entries, position + 1, copy, position,
+				entries.length - position - 1);
+		groups.set(group, copy);
+		reindex();
+	}
+
+	void update(int group, int position, CommandInfo entry) {
+		CommandInfo[] entries = entries(group);
+		if (entries == null) {
+			return;
+		}
+		if (position < 0 || position >= entries.length || entry == null) {
+			invalidate(group);
+			return;
+		}
+		CommandInfo[] copy = Arrays.copyOf(entries, entries.length);
+		copy[position] = entry;
+		groups.set(group, copy);
+		reindex();
+	}
+
+	void invalidate(int group) {
+		groups.set(group, null);
+		reindex();
+	}
+
+	/**
+	 * Replaces the contents of this table with those of another one.
+	 * 
+	 * @param other
+	 *            the table to copy
+	 */
+	void copy(CommandTable other) {
+		for (int g = 0; g < EasyVR.GROUPS; g++) {
+			groups.set(g, other.groups.get(g));
+		}
+		reindex();
+	}
+
+	/**
+	 * Marks all the groups as loaded and empty.
+	 */
+	void reset() {
+		for (int i = 0; i < EasyVR.GROUPS; i++) {
+			groups.set(i, EMPTY_GROUP);
+		}
+		reindex();
+	}
+
+	private void reindex() {
+		Map<String, Integer> index = new HashMap<>();
+		for (int g = 0; g < EasyVR.GROUPS; g++) {
+			CommandInfo[] entries = groups.get(g);
+			if (entries != null) {
+				for (int p = 0; p < entries.length; p++) {
+					index.putIfAbsent(entries[p].getLabel(),
+							g * EasyVR.POSITIONS + p);
+				}
+			}
+		}
+		labelIndex = index;
+	}
+}
@@ -0,0 +1,99 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Binary file format of a custom command table snapshot.
+ * <p>
+ * The file starts with the magic bytes {@code EVRT} and a version byte,
+ * followed by one record per group: the number of commands and, for each
+ * command, its training information, its conflicting position, the length
+ * of its label and the ASCII label.
+ */
+class CommandTableSnapshot {
+
+	private static final byte[] MAGIC = { 'E', 'V', 'R', 'T' };
+	private static final int VERSION = 1;
+
+	/**
+	 * Writes a snapshot to a file.
+	 * 
+	 * @param file
+	 *            the file to write
+	 * @param groups
+	 *            the entries of each group
+	 * @throws IOException
+	 */
+	static void write(Path file, CommandInfo[][] groups)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			for (int g = 0; g < EasyVR.GROUPS; g++) {
+				CommandInfo[] entries = groups[g];
+				out.writeByte(entries.length);
+				for (CommandInfo entry : entries) {
+					byte[] label = entry.getLabel().getBytes(
+							StandardCharsets.US_ASCII);
+					out.writeByte(entry.getFlags());
+					out.writeByte(entry.getConflictPosition());
+					out.writeByte(label.length);
+					out.write(label);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a snapshot from a file.
+	 * 
+	 * @param file
+	 *            the file to read
+	 * @return the entries of each group
+	 * @throws IOException
+	 *             if the file cannot be read or is not a valid snapshot
+	 */
+	static CommandInfo[][] read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (magic[i] != MAGIC[i]) {
+					throw new IOException("Not a command table snapshot");
+				}
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version "
+						+ version);
+			}
+			CommandInfo[][] groups = new CommandInfo[EasyVR.GROUPS][];
+			for (int g = 0; g < EasyVR.GROUPS; g++) {
+				int count = in.readUnsignedByte();
+				if (count > EasyVR.POSITIONS) {
+					throw new IOException("Invalid command count " + count
+							+ " in group " + g);
+				}
+				groups[g] = new CommandInfo[count];
+				for (int p = 0; p < count; p++) {
+					int training = in.readByte();
+					int conflict = in.readByte();
+					byte[] label = new byte[in.readUnsignedByte()];
+					in.readFully(label);
+					groups[g][p] = CommandInfo.decode(training, conflict,
+							new String(label, StandardCharsets.US_ASCII));
+				}
+			}
+			return groups;
+		}
+	}
+}
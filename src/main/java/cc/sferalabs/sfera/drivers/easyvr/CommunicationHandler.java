@@ -1,128 +1,499 @@
 package cc.sferalabs.sfera.drivers.easyvr;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import static cc.sferalabs.sfera.drivers.easyvr.Protocol.decodeArg;
+import static cc.sferalabs.sfera.drivers.easyvr.Protocol.encodeArg;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 
-import cc.sferalabs.sfera.drivers.easyvr.events.RecogSDEvent;
-import cc.sferalabs.sfera.drivers.easyvr.events.RecogSIEvent;
-import cc.sferalabs.sfera.events.Bus;
 import cc.sferalabs.sfera.io.comm.CommPort;
 import cc.sferalabs.sfera.io.comm.CommPortException;
 import cc.sferalabs.sfera.io.comm.CommPortListener;
-import cc.sferalabs.sfera.io.comm.CommPortTimeoutException;
 
 public class CommunicationHandler implements CommPortListener {
 
 	private static final byte[] SPACE_BYTES = { ' ' };
+	private static final int RX_BUFFER_SIZE = 128;
 	private static final int MODE_UNDEF = -1;
 	private static final int MODE_RECOG_SI = 1;
 	private static final int MODE_RECOG_SD = 2;
 	private static final int ASYN_READ_STATE_UNDEF = -1;
-	private static final int ASYN_READ_STATE_SIMILAR = 1;
 	private static final int ASYN_READ_STATE_RESULT = 2;
 	private static final int ASYN_READ_STATE_ERROR0 = 3;
 	private static final int ASYN_READ_STATE_ERROR1 = 4;
+	/** Baud rate of the module at power-on */
+	static final int DEFAULT_BAUD_RATE = 9600;
+	/** Baud rates supported by the module, fastest first */
+	private static final int[] BAUD_RATES = { 115200, 57600, 38400, 19200,
+			9600 };
+	/** Initial reply timeout of the break probe */
+	private static final int PROBE_MIN_TIMEOUT = 50;
+	/** Maximum reply timeout of the break probe */
+	private static final int PROBE_MAX_TIMEOUT = 1000;
+	/** Time given to the module to switch baud rate after acknowledging */
+	private static final int BAUD_RATE_SWITCH_DELAY = 20;
 
 	private final EasyVR driver;
 	private final CommPort commPort;
 	private final Logger logger;
-	private int recogTimeout = -1;
-	private int mode = MODE_UNDEF;
+	private final CommandTable commandTable = new CommandTable();
+	private final byte[] rxBuffer = new byte[RX_BUFFER_SIZE];
+	/** Command frame being built, only used by the I/O thread */
+	private final ByteBuffer txBuffer = ByteBuffer.allocate(RX_BUFFER_SIZE);
+	/** Arrays of each length the command frames are copied to for writing */
+	private final byte[][] txFrames = new byte[RX_BUFFER_SIZE + 1][];
+	private volatile int recogTimeout = -1;
+	private volatile int levelSD = -1;
+	private volatile int levelSI = -1;
+	private volatile int languageSI = -1;
+	private volatile int micDist = -1;
+	private volatile int transmitDelay = -1;
+	private volatile boolean failed = false;
+	private volatile long lastActivity = System.nanoTime();
+	private int baudRate = DEFAULT_BAUD_RATE;
+	/** Serializes the writes of the I/O and listener threads */
+	private final Object txLock = new Object();
+	private final Object replyLock = new Object();
+	private final byte[] replyQueue = new byte[RX_BUFFER_SIZE];
+	private int replyHead = 0;
+	private int replyTail = 0;
+	private boolean replyExpected = false;
+	/** Incremented by every preemption, guarded by {@code replyLock} */
+	private int abortGeneration = 0;
+	/**
+	 * Value of {@link #abortGeneration} the task in progress runs at; the
+	 * task is aborted as soon as they differ
+	 */
+	private int taskGeneration = 0;
+	private final Queue<Task<?>> tasks = new ConcurrentLinkedQueue<>();
+	private final Queue<Task<?>> urgentTasks = new ConcurrentLinkedQueue<>();
+	private volatile Task<?> currentTask;
+	private volatile Thread ioThread;
+	private volatile boolean running = false;
+	private volatile int mode = MODE_UNDEF;
 	private int asynReadState = ASYN_READ_STATE_UNDEF;
+	private final Object recogLock = new Object();
+	private final byte[] rearmCmd = new byte[2];
+	private final AtomicInteger continuousSD = new AtomicInteger();
+	private final AtomicInteger continuousSI = new AtomicInteger();
+	private final AtomicReference<DialogGraph> dialog = new AtomicReference<>(
+			DialogGraph.EMPTY);
+	private int rootMode = MODE_UNDEF;
+	private int rootIndex = -1;
 	private int error = 0;
 	private int index = -1;
+	private final Metrics metrics;
+	private final CommandMetrics recogSDMetrics;
+	private final CommandMetrics recogSIMetrics;
+	/** When the recognition in progress was armed */
+	private long armNanos;
+	/** Whether reply timeouts are expected, e.g. while probing */
+	private boolean probing = false;
+	/** Recorder of the exchanged bytes, or {@code null} */
+	private final WireTrace trace;
 
 	/**
 	 * 
-	 * @param EasyVR driver
+	 * @param driver
+	 *            the driver, or {@code null} when the handler is used outside
+	 *            of a driver, e.g. by the {@link Provisioner}
 	 * @param commPort
-	 * @param countryCode
+	 *            the comm port
 	 * @param logger
+	 *            the logger
 	 */
 	CommunicationHandler(EasyVR driver, CommPort commPort, Logger logger) {
+		this(driver, commPort, logger, null);
+	}
+
+	/**
+	 * 
+	 * @param driver
+	 *            the driver, or {@code null}
+	 * @param commPort
+	 *            the comm port
+	 * @param logger
+	 *            the logger
+	 * @param trace
+	 *            the recorder of the exchanged bytes, or {@code null}
+	 */
+	CommunicationHandler(EasyVR driver, CommPort commPort, Logger logger,
+			WireTrace trace) {
 		this.driver = driver;
 		this.commPort = commPort;
 		this.logger = logger;
+		this.trace = trace;
+		this.metrics = (driver != null) ? driver.getMetrics() : new Metrics();
+		this.recogSDMetrics = metrics.get("recognitionSD");
+		this.recogSIMetrics = metrics.get("recognitionSI");
+	}
+
+	/**
+	 * @return the mirror of the custom command table of the module
+	 */
+	CommandTable getCommandTable() {
+		return commandTable;
+	}
+
+	/**
+	 * @return the command metrics this handler records to
+	 */
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Installs this handler as the comm port listener for the whole life of
+	 * the connection and starts the I/O thread. Incoming bytes are then routed
+	 * either to the pending command reply or to the recognition state
+	 * machine, while commands are executed one at a time by the I/O thread.
+	 * <p>
+	 * Two threads write to the port: the I/O thread sends the command frames
+	 * and the listener thread acknowledges the received bytes and, to miss no
+	 * speech, re-arms recognition as soon as a result arrives instead of
+	 * queuing a command. Each write is atomic, so frames never interleave on
+	 * the wire. Re-arming is ordered against the commands by
+	 * {@code recogLock}: a recognition is only re-armed while its mode is
+	 * unchanged, and a break resets the mode before being queued, so no
+	 * recognition is re-armed after a break was requested.
+	 * 
+	 * @throws CommPortException
+	 *             if the listener cannot be installed
+	 */
+	void start() throws CommPortException {
+		running = true;
+		ioThread = new Thread(this::ioLoop, "EasyVR I/O");
+		ioThread.setDaemon(true);
+		ioThread.start();
+		commPort.setListener(this);
+	}
+
+	/**
+	 * Stops the I/O thread. Commands still queued are cancelled and the
+	 * handler is marked as failed.
+	 */
+	void close() {
+		running = false;
+		failed = true;
+		Thread t = ioThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+		cancelPending();
+	}
+
+	/**
+	 * Queues a task for the I/O thread.
+	 * 
+	 * @param name
+	 *            the command type the task is accounted to in the metrics
+	 * @param callable
+	 *            the task
+	 * @return a future completed with the result of the task
+	 */
+	private <T> CompletableFuture<T> submit(String name,
+			Callable<T> callable) {
+		Task<T> task = new Task<>(metrics.get(name), callable);
+		tasks.offer(task);
+		wakeUp();
+		return task.future;
+	}
+
+	/**
+	 * Queues a task on the priority lane, ahead of any other command. All the
+	 * queued commands are cancelled and the one in progress, if any, is
+	 * aborted without waiting for its reply.
+	 * 
+	 * @param name
+	 *            the command type the task is accounted to in the metrics
+	 * @param callable
+	 *            the task
+	 * @return a future completed with the result of the task
+	 */
+	private <T> CompletableFuture<T> preempt(String name,
+			Callable<T> callable) {
+		Task<T> task = new Task<>(metrics.get(name), callable);
+		cancelQueue(tasks);
+		synchronized (replyLock) {
+			// abort the task in progress before the I/O thread can pick up
+			// the new one, which runs at the new generation
+			task.generation = ++abortGeneration;
+			replyLock.notifyAll();
+		}
+		urgentTasks.offer(task);
+		Task<?> current = currentTask;
+		// the I/O thread may already have picked up the new task
+		if (current != null && current != task) {
+			current.future.cancel(false);
+		}
+		wakeUp();
+		return task.future;
+	}
+
+	private void wakeUp() {
+		if (running) {
+			LockSupport.unpark(ioThread);
+		} else {
+			cancelPending();
+		}
+	}
+
+	private void cancelPending() {
+		cancelQueue(urgentTasks);
+		cancelQueue(tasks);
+	}
+
+	private static void cancelQueue(Queue<Task<?>> queue) {
+		Task<?> task;
+		while ((task = queue.poll()) != null) {
+			task.future.cancel(false);
+		}
+	}
+
+	private void ioLoop() {
+		while (running) {
+			Task<?> task = urgentTasks.poll();
+			if (task == null) {
+				task = tasks.poll();
+			}
+			if (task == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			synchronized (replyLock) {
+				// a preempting task is aborted if a later one was queued
+				taskGeneration = (task.generation >= 0) ? task.generation
+						: abortGeneration;
+			}
+			currentTask = task;
+			task.run();
+			currentTask = null;
+			synchronized (replyLock) {
+				replyExpected = false;
+			}
+		}
+		cancelPending();
 	}
 
 	@Override
 	public void onRead(byte[] bytes) {
 
+		lastActivity = System.nanoTime();
+		if (trace != null) {
+			trace.record(WireTrace.RX, bytes);
+		}
 		for (byte b : bytes) {
 			try {
-				commPort.writeBytes(SPACE_BYTES);
-				switch (mode) {
-				case MODE_RECOG_SI:
-					switch (asynReadState) {
-					case ASYN_READ_STATE_UNDEF:
-						if (b == 's') {
-							asynReadState = ASYN_READ_STATE_SIMILAR;
-						} else if (b == 'e') {
-							asynReadState = ASYN_READ_STATE_ERROR0;
-						} else {
-							commPort.removeListener();
-							mode = MODE_UNDEF;
-							Bus.post(new RecogSIEvent(driver, index, -1));
-						}
-						break;
-					case ASYN_READ_STATE_SIMILAR:
-						commPort.removeListener();
-						mode = MODE_UNDEF;
-						asynReadState = ASYN_READ_STATE_UNDEF;
-						Bus.post(new RecogSIEvent(driver, index, decodeArg(b)));
-						break;
-					case ASYN_READ_STATE_ERROR0:
-						error = 16 * decodeArg(b);
-						asynReadState = ASYN_READ_STATE_ERROR1;
-						break;
-					case ASYN_READ_STATE_ERROR1:
-						commPort.removeListener();
-						mode = MODE_UNDEF;
-						asynReadState = ASYN_READ_STATE_UNDEF;
-						Bus.post(new RecogSIEvent(driver, index,
-								-(error + decodeArg(b))));
-						break;
-					}
-					break;
-				case MODE_RECOG_SD:
-					switch (asynReadState) {
-					case ASYN_READ_STATE_UNDEF:
-						if (b == 'r') {
-							asynReadState = ASYN_READ_STATE_RESULT;
-						} else if (b == 'e') {
-							asynReadState = ASYN_READ_STATE_ERROR0;
-						} else {
-							commPort.removeListener();
-							mode = MODE_UNDEF;
-							Bus.post(new RecogSDEvent(driver, index, -1));
-						}
-						break;
-					case ASYN_READ_STATE_RESULT:
-						commPort.removeListener();
-						mode = MODE_UNDEF;
-						asynReadState = ASYN_READ_STATE_UNDEF;
-						Bus.post(new RecogSDEvent(driver, index, decodeArg(b)));
-						break;
-					case ASYN_READ_STATE_ERROR0:
-						error = 16 * decodeArg(b);
-						asynReadState = ASYN_READ_STATE_ERROR1;
-						break;
-					case ASYN_READ_STATE_ERROR1:
-						commPort.removeListener();
-						mode = MODE_UNDEF;
-						asynReadState = ASYN_READ_STATE_UNDEF;
-						Bus.post(new RecogSDEvent(driver, index,
-								-(error + decodeArg(b))));
-						break;
-					}
-					break;
+				if (offerReply(b)) {
+					continue;
+				}
+				if (mode != MODE_UNDEF) {
+					write(SPACE_BYTES, false);
+					onRecogByte(b);
 				}
 			} catch (CommPortException e) {
 				logger.error("Error reading from comm port", e);
-				driver.quit();
+				failed = true;
+			}
+		}
+	}
+
+	/**
+	 * Advances the asynchronous recognition state machine.
+	 * 
+	 * @param b
+	 *            the received byte
+	 * @throws CommPortException
+	 */
+	private void onRecogByte(byte b) throws CommPortException {
+		switch (asynReadState) {
+		case ASYN_READ_STATE_UNDEF:
+			if (b == ((mode == MODE_RECOG_SD) ? 'r' : 's')) {
+				asynReadState = ASYN_READ_STATE_RESULT;
+			} else if (b == 'e') {
+				asynReadState = ASYN_READ_STATE_ERROR0;
+			} else if (b == 't') {
+				// nothing recognized within the recognition timeout
+				recogMetrics().timeout();
+				onRecogResult(-1);
+			} else {
+				recogMetrics().protocolError();
+				onRecogResult(-1);
 			}
+			break;
+		case ASYN_READ_STATE_RESULT:
+			onRecogResult(decodeArg(b));
+			break;
+		case ASYN_READ_STATE_ERROR0:
+			error = 16 * decodeArg(b);
+			asynReadState = ASYN_READ_STATE_ERROR1;
+			break;
+		case ASYN_READ_STATE_ERROR1:
+			onRecogResult(-(error + decodeArg(b)));
+			break;
+		}
+	}
+
+	/**
+	 * Completes a recognition. If the result has a transition in the dialog
+	 * graph the next step is armed and nothing is posted. Otherwise the
+	 * result is the final outcome: if continuous recognition is enabled for
+	 * the step the dialog started from, that step is re-armed right away,
+	 * before the result is posted, so that no speech is missed while the
+	 * event is processed.
+	 * 
+	 * @param value
+	 *            the recognized position or the negative error code
+	 * @throws CommPortException
+	 */
+	private void onRecogResult(int value) throws CommPortException {
+		int recogMode = mode;
+		int group = index;
+		asynReadState = ASYN_READ_STATE_UNDEF;
+		recogMetrics().record(System.nanoTime() - armNanos, value >= 0);
+		int nextStep = dialog.get().next(recogMode == MODE_RECOG_SD, group,
+				value);
+		synchronized (recogLock) {
+			if (mode == recogMode) { // not interrupted by a break
+				if (nextStep >= 0) {
+					rearm(DialogGraph.isSpeakerDependent(nextStep)
+							? MODE_RECOG_SD : MODE_RECOG_SI,
+							DialogGraph.group(nextStep));
+					return;
+				}
+				if (isContinuous(rootMode, rootIndex)) {
+					rearm(rootMode, rootIndex);
+				} else {
+					mode = MODE_UNDEF;
+				}
+			}
+		}
+		if (driver != null) {
+			if (recogMode == MODE_RECOG_SD) {
+				CommandInfo entry = commandTable.get(group, value);
+				driver.onRecognition(true, group, value,
+						(entry == null) ? null : entry.getLabel());
+			} else {
+				driver.onRecognition(false, group, value, null);
+			}
+		}
+	}
+
+	/**
+	 * Starts a recognition from the listener thread. Must be called holding
+	 * {@code recogLock}.
+	 * 
+	 * @param recogMode
+	 *            the recognition mode
+	 * @param group
+	 *            the group index
+	 * @throws CommPortException
+	 */
+	private void rearm(int recogMode, int group) throws CommPortException {
+		rearmCmd[0] = (recogMode == MODE_RECOG_SD) ? (byte) 'd' : (byte) 'i';
+		rearmCmd[1] = encodeArg(group);
+		index = group;
+		mode = recogMode;
+		armNanos = System.nanoTime();
+		write(rearmCmd, true);
+	}
+
+	private CommandMetrics recogMetrics() {
+		return (mode == MODE_RECOG_SD) ? recogSDMetrics : recogSIMetrics;
+	}
+
+	private boolean isContinuous(int recogMode, int group) {
+		int mask = (recogMode == MODE_RECOG_SD) ? continuousSD.get()
+				: continuousSI.get();
+		return (mask & (1 << group)) != 0;
+	}
+
+	/**
+	 * Adds a transition to the dialog graph.
+	 * 
+	 * @param speakerDependent
+	 *            the type of the source step
+	 * @param group
+	 *            the group of the source step
+	 * @param position
+	 *            the recognized position or {@link DialogGraph#ANY_POSITION}
+	 * @param nextSpeakerDependent
+	 *            the type of the next step
+	 * @param nextGroup
+	 *            the group of the next step
+	 */
+	void addDialogStep(boolean speakerDependent, int group, int position,
+			boolean nextSpeakerDependent, int nextGroup) {
+		dialog.updateAndGet(d -> d.with(speakerDependent, group, position,
+				nextSpeakerDependent, nextGroup));
+	}
+
+	/**
+	 * Removes all the transitions from the dialog graph.
+	 */
+	void clearDialog() {
+		dialog.set(DialogGraph.EMPTY);
+	}
+
+	/**
+	 * Enables or disables continuous recognition for a group. In continuous
+	 * mode the recognition of the group, or the dialog starting from it, is
+	 * re-armed as soon as a final result, an error or a timeout is received,
+	 * until a break is sent.
+	 * 
+	 * @param speakerDependent
+	 *            {@code true} for custom commands, {@code false} for built-in
+	 *            words
+	 * @param group
+	 *            the group index
+	 * @param enabled
+	 *            whether to enable continuous recognition
+	 */
+	void setContinuous(boolean speakerDependent, int group, boolean enabled) {
+		AtomicInteger mask = speakerDependent ? continuousSD : continuousSI;
+		int bit = 1 << group;
+		int prev;
+		do {
+			prev = mask.get();
+		} while (!mask.compareAndSet(prev, enabled ? (prev | bit)
+				: (prev & ~bit)));
+	}
+
+	/**
+	 * Routes a received byte to the pending synchronous command, if any. The
+	 * byte is acknowledged before the command can see it, so that the next
+	 * command frame never goes on the wire ahead of the acknowledgement. The
+	 * byte is queued first, in case the port delivers the next one from
+	 * within the write.
+	 * 
+	 * @param b
+	 *            the received byte
+	 * @return {@code true} if the byte was part of a command reply
+	 * @throws CommPortException
+	 */
+	private boolean offerReply(byte b) throws CommPortException {
+		synchronized (replyLock) {
+			if (!replyExpected) {
+				return false;
+			}
+			if (replyTail < replyQueue.length) {
+				replyQueue[replyTail++] = b;
+			}
+			try {
+				write(SPACE_BYTES, false);
+			} finally {
+				replyLock.notifyAll();
+			}
+			return true;
 		}
 	}
 
@@ -130,92 +501,555 @@ public class CommunicationHandler implements CommPortListener {
 	public void onError(Throwable t) {
 
 		logger.error("Error reading from comm port", t);
-		driver.quit();
+		failed = true;
+	}
+
+	/**
+	 * @return {@code true} if the comm port failed or the handler was closed
+	 */
+	boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * @param millis
+	 *            the quiet interval in milliseconds
+	 * @return {@code true} if no command is pending and nothing was sent or
+	 *         received in the last {@code millis} milliseconds
+	 */
+	boolean isIdle(long millis) {
+		return currentTask == null && tasks.isEmpty() && urgentTasks.isEmpty()
+				&& System.nanoTime() - lastActivity >= millis * 1000000L;
+	}
+
+	/**
+	 * @return {@code true} if a recognition is in progress
+	 */
+	boolean isListening() {
+		return mode != MODE_UNDEF;
+	}
+
+	/**
+	 * Takes over the host-side state of a handler previously connected to
+	 * the same module: continuous recognition flags, dialog graph and custom
+	 * command table mirror. The module settings are restored by
+	 * {@link #commandResume(CommunicationHandler)}.
+	 * 
+	 * @param previous
+	 *            the previous handler
+	 */
+	void adopt(CommunicationHandler previous) {
+		continuousSD.set(previous.continuousSD.get());
+		continuousSI.set(previous.continuousSI.get());
+		dialog.set(previous.dialog.get());
+		commandTable.copy(previous.commandTable);
+	}
+
+	/**
+	 * Re-applies the settings of a handler previously connected to the same
+	 * module and re-arms the recognition it had in progress.
+	 * 
+	 * @param previous
+	 *            the previous handler
+	 * @return a future completed with {@code true} if successful
+	 */
+	CompletableFuture<Boolean> commandResume(CommunicationHandler previous) {
+		return submit("resume", () -> doResume(previous));
+	}
+
+	/**
+	 * Applies a settings profile in a single task, so that no other command
+	 * is interleaved. Only the settings that differ from the ones last
+	 * applied are sent to the module. A failed setting does not stop the
+	 * others, nor undo the ones already applied.
+	 * 
+	 * @param profile
+	 *            the settings profile
+	 * @return a future completed with {@code true} if successful
+	 */
+	CompletableFuture<Boolean> commandSettings(SettingsProfile profile) {
+		SettingsProfile p = new SettingsProfile(profile);
+		return submit("settings", () -> doSettings(p));
+	}
+
+	private boolean doSettings(SettingsProfile p) {
+		boolean ok = true;
+
+		if (p.transmitDelay >= 0) {
+			ok &= doTransmitDelay(p.transmitDelay);
+		}
+		if (p.timeout >= 0) {
+			ok &= doTimeout(p.timeout);
+		}
+		if (p.level >= 0) {
+			ok &= doLevelSD(p.level);
+		}
+		if (p.knob >= 0) {
+			ok &= doLevelSI(p.knob);
+		}
+		if (p.language >= 0) {
+			ok &= doLanguageSI(p.language);
+		}
+		if (p.micDistance >= 0) {
+			ok &= doMicDist(p.micDistance);
+		}
+		return ok;
 	}
 
-	synchronized boolean commandAddSD(int group, int position, String label) {
-		final byte[] cmd_group_sd = { 'g', encodeArg(group),
-				encodeArg(position) };
-		final byte[] cmd_name_sd = { 'n', encodeArg(group),
-				encodeArg(position), 0 };
+	private boolean doResume(CommunicationHandler previous) {
+		boolean ok = true;
+
+		if (previous.transmitDelay >= 0) {
+			ok &= doTransmitDelay(previous.transmitDelay);
+		}
+		if (previous.recogTimeout >= 0) {
+			ok &= doTimeout(previous.recogTimeout);
+		}
+		if (previous.levelSD >= 0) {
+			ok &= doLevelSD(previous.levelSD);
+		}
+		if (previous.levelSI >= 0) {
+			ok &= doLevelSI(previous.levelSI);
+		}
+		if (previous.languageSI >= 0) {
+			ok &= doLanguageSI(previous.languageSI);
+		}
+		if (previous.micDist >= 0) {
+			ok &= doMicDist(previous.micDist);
+		}
+		int recogMode;
+		int group;
+		synchronized (previous.recogLock) {
+			// re-arm the root group, the dialog step in progress is lost
+			recogMode = (previous.mode != MODE_UNDEF) ? previous.rootMode
+					: MODE_UNDEF;
+			group = previous.rootIndex;
+		}
+		if (recogMode == MODE_RECOG_SD) {
+			ok &= doRecogSD(group);
+		} else if (recogMode == MODE_RECOG_SI) {
+			ok &= doRecogSI(group);
+		}
+		return ok;
+	}
+
+	/**
+	 * Sends a command frame as is and waits for a success status.
+	 * 
+	 * @param frame
+	 *            the command bytes
+	 * @return a future completed with {@code true} if successful
+	 */
+	CompletableFuture<Boolean> commandRaw(byte[] frame) {
+		return submit("raw", () -> doRaw(frame));
+	}
+
+	private boolean doRaw(byte[] frame) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_group_sd);
-			if (readBytes(1)[0] != 'o') {
+			ByteBuffer cmd = frame((char) frame[0]);
+			cmd.put(frame, 1, frame.length - 1);
+			send(cmd);
+			return readOk();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	CompletableFuture<Boolean> commandAddSD(int group, int position,
+			String label) {
+		return submit("addSD", () -> doAddSD(group, position, label));
+	}
+
+	private boolean doAddSD(int group, int position, String label) {
+
+		if (Protocol.labelLength(label) > Protocol.MAX_LABEL_LENGTH) {
+			logger.warn("Label too long: {}", label);
+			return false;
+		}
+		try {
+			send(frame('g').put(encodeArg(group)).put(encodeArg(position)));
+			if (!readOk()) {
 				return false;
 			}
-			byte[] lbytes = encodeLabel(label);
-			cmd_name_sd[3] = encodeArg(lbytes.length);
-			commPort.writeBytes(cmd_name_sd);
-			commPort.writeBytes(lbytes);
-			if (readBytes(1)[0] != 'o') {
+			ByteBuffer cmd_name_sd = frame('n').put(encodeArg(group)).put(
+					encodeArg(position)).put((byte) 0);
+			int len = Protocol.encodeLabel(label, cmd_name_sd);
+			cmd_name_sd.put(3, encodeArg(len));
+			send(cmd_name_sd);
+			if (!readOk()) {
+				commandTable.invalidate(group);
 				return false;
 			}
+			commandTable.insert(group, position, new CommandInfo(0, 0, 0,
+					Protocol.normalizeLabel(label)));
 			return true;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
-	synchronized boolean commandBreak() {
-		final byte[] cmd_break = { 'b' };
+	/**
+	 * Switches both ends of the link to the fastest baud rate not above
+	 * {@code maxBaudRate} that passes a verification round trip. A rate that
+	 * fails verification is abandoned, the module is brought back to the
+	 * previous rate and the next slower rate is tried.
+	 * 
+	 * @param maxBaudRate
+	 *            the maximum baud rate; {@link #DEFAULT_BAUD_RATE} restores
+	 *            the power-on rate
+	 * @return a future completed with the baud rate in use, or -1 if the
+	 *         link was lost
+	 */
+	CompletableFuture<Integer> commandBaudRate(int maxBaudRate) {
+		return submit("baudRate", () -> doBaudRate(maxBaudRate));
+	}
+
+	private int doBaudRate(int maxBaudRate) throws CommPortException,
+			InterruptedException {
+		for (int rate : BAUD_RATES) {
+			if (rate > maxBaudRate) {
+				continue;
+			}
+			if (rate == baudRate) {
+				break;
+			}
+			int res = doSwitchBaudRate(rate);
+			if (res < 0) {
+				return -1;
+			}
+			if (res > 0) {
+				break;
+			}
+		}
+		return baudRate;
+	}
 
+	/**
+	 * Switches both ends of the link to a new baud rate and verifies it.
+	 * 
+	 * @param rate
+	 *            the new baud rate
+	 * @return 1 if the link works at the new rate, 0 if it is back at the
+	 *         previous rate, -1 if the link was lost
+	 * @throws CommPortException
+	 * @throws InterruptedException
+	 */
+	private int doSwitchBaudRate(int rate) throws CommPortException,
+			InterruptedException {
+		int previous = baudRate;
+		if (!requestBaudRate(rate)) {
+			return 0;
+		}
+		if (doID() >= 0) {
+			return 1;
+		}
+		logger.warn("Baud rate {} verification failed, falling back", rate);
+		countRetry();
+		if (requestBaudRate(previous) && doID() >= 0) {
+			return 0;
+		}
+		// the module may have never left the previous rate
+		setHostBaudRate(previous);
+		return (doID() >= 0) ? 0 : -1;
+	}
+
+	/**
+	 * Asks the module to switch baud rate and, if acknowledged, switches the
+	 * host side too.
+	 * 
+	 * @param rate
+	 *            the new baud rate
+	 * @return {@code true} if the module acknowledged the request
+	 * @throws CommPortException
+	 * @throws InterruptedException
+	 */
+	private boolean requestBaudRate(int rate) throws CommPortException,
+			InterruptedException {
+
+		send(frame('a').put(encodeArg(115200 / rate)));
+		if (!readOk()) {
+			return false;
+		}
+		Thread.sleep(BAUD_RATE_SWITCH_DELAY);
+		setHostBaudRate(rate);
+		return true;
+	}
+
+	private void setHostBaudRate(int rate) throws CommPortException {
+		commPort.setParams(rate, 8, 1, CommPort.PARITY_NONE,
+				CommPort.FLOWCONTROL_NONE);
+		baudRate = rate;
+	}
+
+	/**
+	 * Interrupts recognition or playback. The break is sent on the priority
+	 * lane: queued commands are cancelled and the command in progress fails
+	 * immediately.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	CompletableFuture<Boolean> commandBreak() {
+		synchronized (recogLock) {
+			mode = MODE_UNDEF;
+		}
+		return preempt("break", () -> doBreak());
+	}
+
+	private boolean doBreak() {
 		try {
-			commPort.removeListener();
-		} catch (CommPortException e) {
+			return doProbe(EasyVR.RESPONSE_TIMEOUT, false);
+		} catch (Exception e) {
+			return false;
 		}
+	}
 
+	/**
+	 * Waits for the module to answer, e.g. after power-on. The module is
+	 * probed with break commands at every supported baud rate, in case it was
+	 * left at a rate other than the power-on one.
+	 * 
+	 * @param timeoutMillis
+	 *            the overall deadline
+	 * @return a future completed with {@code true} as soon as the module
+	 *         answers, or with {@code false} when the deadline expires
+	 */
+	CompletableFuture<Boolean> commandHandshake(int timeoutMillis) {
+		return submit("handshake", () -> doProbe(timeoutMillis, true));
+	}
+
+	/**
+	 * Runs {@link #probe(int, boolean)}, during which unanswered probes are
+	 * counted as retries rather than timeouts.
+	 */
+	private boolean doProbe(int timeoutMillis, boolean scanBaudRates)
+			throws CommPortException {
+		probing = true;
 		try {
+			return probe(timeoutMillis, scanBaudRates);
+		} finally {
+			probing = false;
+		}
+	}
+
+	/**
+	 * Sends break commands until acknowledged. The reply timeout starts
+	 * short, to detect the module as soon as it answers, and doubles after
+	 * every unanswered round up to {@link #PROBE_MAX_TIMEOUT}; the whole
+	 * probe is bound to an overall deadline. Late acknowledgements are only
+	 * drained when they are possible, i.e. after an unanswered probe or when
+	 * scanning baud rates, so that a plain break returns as soon as it is
+	 * acknowledged.
+	 * 
+	 * @param timeoutMillis
+	 *            the overall deadline
+	 * @param scanBaudRates
+	 *            whether to probe the other baud rates too, after the current
+	 *            one
+	 * @return {@code true} if the module acknowledged
+	 * @throws CommPortException
+	 */
+	private boolean probe(int timeoutMillis, boolean scanBaudRates)
+			throws CommPortException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		int probeTimeout = PROBE_MIN_TIMEOUT;
+		int home = baudRate;
+		boolean retried = false;
+
+		synchronized (recogLock) {
 			mode = MODE_UNDEF;
-			for (int i = 0; i < 100; i++) {
-				commPort.clear();
-				commPort.writeBytes(cmd_break);
-				try {
-					if (readBytes(1)[0] == 'o') {
-						return true;
+			asynReadState = ASYN_READ_STATE_UNDEF;
+		}
+		while (true) {
+			for (int i = 0; i <= (scanBaudRates ? BAUD_RATES.length : 0); i++) {
+				int rate = (i == 0) ? home : BAUD_RATES[i - 1];
+				if (i > 0 && rate == home) {
+					continue;
+				}
+				long remaining = (deadline - System.nanoTime()) / 1000000L;
+				if (remaining <= 0) {
+					if (baudRate != home) {
+						setHostBaudRate(home);
 					}
-				} catch (CommPortTimeoutException e) {
+					return false;
+				}
+				if (rate != baudRate) {
+					setHostBaudRate(rate);
+				}
+				send(frame('b'));
+				int timeout = (int) Math.min(probeTimeout, remaining);
+				if (readStatus(timeout) == 'o') {
+					if (scanBaudRates || retried) {
+						// swallow late acknowledgements of previous probes
+						while (readStatus(PROBE_MIN_TIMEOUT) != -1) {
+						}
+					}
+					return true;
 				}
+				retried = true;
+				countRetry();
 			}
-		} catch (Exception e) {
+			probeTimeout = Math.min(probeTimeout * 2, PROBE_MAX_TIMEOUT);
 		}
-		return false;
 	}
 
-	synchronized int commandCountSD(int group) {
-		final byte[] cmd_count_sd = { 'c', encodeArg(group) };
+	/**
+	 * Loads the groups of the command table mirror that are not loaded yet.
+	 * Each group is loaded by a separate task, so that other commands can be
+	 * interleaved.
+	 * 
+	 * @return a future completed with {@code true} if all the groups were
+	 *         loaded
+	 */
+	CompletableFuture<Boolean> loadCommandTable() {
+		CompletableFuture<Boolean> result = CompletableFuture
+				.completedFuture(true);
+		for (int i = 0; i < EasyVR.GROUPS; i++) {
+			final int group = i;
+			result = result.thenCombine(
+					submit("loadGroup", () -> doLoadGroup(group)),
+					(a, b) -> a && b);
+		}
+		return result;
+	}
+
+	private boolean doLoadGroup(int group) {
+		if (commandTable.isLoaded(group)) {
+			return true;
+		}
+		int count = doCountSD(group);
+		if (count < 0) {
+			return false;
+		}
+		CommandInfo[] entries = new CommandInfo[count];
+		for (int i = 0; i < count; i++) {
+			entries[i] = doDumpEntry(group, i);
+			if (entries[i] == null) {
+				return false;
+			}
+		}
+		commandTable.load(group, entries);
+		return true;
+	}
+
+	/**
+	 * Replays a command table snapshot to the module. One task per group is
+	 * queued at once, so the groups are restored back to back by the I/O
+	 * thread. Within a group the commands matching the snapshot, in label
+	 * and position, are left untouched; the following ones are removed and
+	 * the remaining snapshot commands are added. Training data cannot be
+	 * transferred, so added commands are untrained.
+	 * 
+	 * @param groups
+	 *            the snapshot entries of each group
+	 * @return a future completed with {@code true} if all the groups were
+	 *         restored
+	 */
+	CompletableFuture<Boolean> commandRestore(CommandInfo[][] groups) {
+		CompletableFuture<Boolean> result = CompletableFuture
+				.completedFuture(true);
+		for (int i = 0; i < EasyVR.GROUPS; i++) {
+			final int group = i;
+			result = result.thenCombine(
+					submit("restoreGroup",
+							() -> doRestoreGroup(group, groups[group])),
+					(a, b) -> a && b);
+		}
+		return result;
+	}
+
+	private boolean doRestoreGroup(int group, CommandInfo[] target) {
+		if (!doLoadGroup(group)) {
+			return false;
+		}
+		CommandInfo[] current = commandTable.entries(group);
+		int common = 0;
+		while (common < current.length && common < target.length
+				&& current[common].getLabel().equals(
+						target[common].getLabel())) {
+			common++;
+		}
+		for (int i = current.length - 1; i >= common; i--) {
+			if (!doRemoveSD(group, i)) {
+				return false;
+			}
+		}
+		for (int i = common; i < target.length; i++) {
+			if (!doAddSD(group, i, target[i].getLabel())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of commands in a group, from the command table
+	 * mirror if the group is loaded.
+	 * 
+	 * @param group
+	 *            the group index
+	 * @return a future completed with the number of commands or -1
+	 */
+	CompletableFuture<Integer> commandCountSD(int group) {
+		int count = commandTable.count(group);
+		if (count >= 0) {
+			return CompletableFuture.completedFuture(count);
+		}
+		return submit("countSD", () -> doCountSD(group));
+	}
+
+	private int doCountSD(int group) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_count_sd);
-			byte[] resa = readBytes(2);
-			if (resa[0] == cmd_count_sd[0]) {
-				int count = decodeArg(resa[1]);
-				return (count == -1) ? 32 : count;
+			send(frame('c').put(encodeArg(group)));
+			if (readBytes(0, 2) == 2) {
+				if (rxBuffer[0] == 'c') {
+					int count = decodeArg(rxBuffer[1]);
+					return (count == -1) ? 32 : count;
+				}
+				countProtocolError();
 			}
 		} catch (Exception e) {
 		}
 		return -1;
 	}
 
-	synchronized String commandDumpSD(int group, int position) {
-		final byte[] cmd_dump_sd = { 'p', encodeArg(group), encodeArg(position) };
-		byte[] resa, labela;
+	/**
+	 * Returns a command of a group, from the command table mirror if the
+	 * group is loaded.
+	 * 
+	 * @param group
+	 *            the group index
+	 * @param position
+	 *            the command position
+	 * @return a future completed with the command description or
+	 *         {@code null}
+	 */
+	CompletableFuture<CommandInfo> commandDumpSD(int group, int position) {
+		if (commandTable.isLoaded(group)) {
+			return CompletableFuture.completedFuture(commandTable.get(group,
+					position));
+		}
+		return submit("dumpSD", () -> doDumpEntry(group, position));
+	}
+
+	private CommandInfo doDumpEntry(int group, int position) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_dump_sd);
-			resa = readBytes(4);
-			if (resa[0] != 'd') {
+			send(frame('p').put(encodeArg(group)).put(encodeArg(position)));
+			if (readBytes(0, 4) != 4) {
 				return null;
 			}
-			int len = decodeArg(resa[3]);
-			labela = readBytes(len);
-			if (len == labela.length) {
-				return decodeLabel(decodeArg(resa[1]) + " "
-						+ decodeArg(resa[2]) + " "
-						+ new String(labela, StandardCharsets.US_ASCII));
+			int training = decodeArg(rxBuffer[1]);
+			int conflict = decodeArg(rxBuffer[2]);
+			int len = decodeArg(rxBuffer[3]);
+			if (rxBuffer[0] != 'd' || len < 0 || len > rxBuffer.length) {
+				countProtocolError();
+				return null;
+			}
+			if (readBytes(0, len) == len) {
+				return CommandInfo.decode(training, conflict,
+						Protocol.decodeLabel(rxBuffer, 0, len));
 			} else {
 				return null;
 			}
@@ -224,14 +1058,20 @@ public class CommunicationHandler implements CommPortListener {
 		}
 	}
 
-	synchronized boolean commandEraseSD(int group, int position) {
-		final byte[] cmd_erase_sd = { 'e', encodeArg(group),
-				encodeArg(position) };
+	CompletableFuture<Boolean> commandEraseSD(int group, int position) {
+		return submit("eraseSD", () -> doEraseSD(group, position));
+	}
+
+	private boolean doEraseSD(int group, int position) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_erase_sd);
-			if (readBytes(1)[0] == 'o') {
+			send(frame('e').put(encodeArg(group)).put(encodeArg(position)));
+			if (readOk()) {
+				CommandInfo entry = commandTable.get(group, position);
+				if (entry != null) {
+					commandTable.update(group, position, new CommandInfo(0,
+							0, 0, entry.getLabel()));
+				}
 				return true;
 			} else {
 				return false;
@@ -241,93 +1081,170 @@ public class CommunicationHandler implements CommPortListener {
 		}
 	}
 
-	synchronized int commandID() {
-		final byte[] cmd_id = { 'x' };
+	CompletableFuture<Integer> commandID() {
+		return submit("id", () -> doID());
+	}
+
+	/**
+	 * Checks that the module answers. If a recognition is in progress, it is
+	 * interrupted for the check and then re-armed on the same step, so that
+	 * a dialog in progress continues where it was.
+	 * 
+	 * @return a future completed with {@code true} if the module answered
+	 */
+	CompletableFuture<Boolean> commandPing() {
+		return submit("ping", () -> doPing());
+	}
+
+	private boolean doPing() {
+		int recogMode;
+		int group;
+		synchronized (recogLock) {
+			recogMode = mode;
+			group = index;
+			mode = MODE_UNDEF;
+		}
+		if (recogMode == MODE_UNDEF) {
+			return doID() >= 0;
+		}
+		if (doBreak() && doID() >= 0) {
+			synchronized (recogLock) {
+				asynReadState = ASYN_READ_STATE_UNDEF;
+				try {
+					// rearm() leaves the root of the dialog untouched
+					rearm(recogMode, group);
+					return true;
+				} catch (CommPortException e) {
+				}
+			}
+		}
+		synchronized (recogLock) {
+			// still armed as far as a reconnection is concerned
+			if (mode == MODE_UNDEF) {
+				mode = recogMode;
+				index = group;
+			}
+		}
+		return false;
+	}
+
+	private int doID() {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_id);
-			byte[] resa = readBytes(2);
-			if (resa[0] == cmd_id[0]) {
-				return decodeArg(resa[1]);
+			send(frame('x'));
+			if (readBytes(0, 2) == 2) {
+				if (rxBuffer[0] == 'x') {
+					return decodeArg(rxBuffer[1]);
+				}
+				countProtocolError();
 			}
 		} catch (Exception e) {
 		}
 		return -1;
 	}
 
-	synchronized boolean commandLanguageSI(int language) {
-		final byte[] cmd_language = { 'l', encodeArg(language) };
+	CompletableFuture<Boolean> commandLanguageSI(int language) {
+		return submit("languageSI", () -> doLanguageSI(language));
+	}
+
+	private boolean doLanguageSI(int language) {
 
-		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_language);
-			if (readBytes(1)[0] == 'o') {
-				return true;
-			} else {
+		if (languageSI != language) {
+			try {
+				send(frame('l').put(encodeArg(language)));
+				if (readOk()) {
+					languageSI = language;
+					return true;
+				} else {
+					return false;
+				}
+			} catch (Exception e) {
 				return false;
 			}
-		} catch (Exception e) {
-			return false;
+		} else {
+			return true;
 		}
 	}
 
-	synchronized boolean commandLevelSD(int level) {
-		final byte[] cmd_level = { 'v', encodeArg(level) };
+	CompletableFuture<Boolean> commandLevelSD(int level) {
+		return submit("levelSD", () -> doLevelSD(level));
+	}
 
-		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_level);
-			if (readBytes(1)[0] == 'o') {
-				return true;
-			} else {
+	private boolean doLevelSD(int level) {
+
+		if (levelSD != level) {
+			try {
+				send(frame('v').put(encodeArg(level)));
+				if (readOk()) {
+					levelSD = level;
+					return true;
+				} else {
+					return false;
+				}
+			} catch (Exception e) {
 				return false;
 			}
-		} catch (Exception e) {
-			return false;
+		} else {
+			return true;
 		}
 	}
 
-	synchronized boolean commandLevelSI(int level) {
-		final byte[] cmd_knob = { 'k', encodeArg(level) };
+	CompletableFuture<Boolean> commandLevelSI(int level) {
+		return submit("levelSI", () -> doLevelSI(level));
+	}
 
-		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_knob);
-			if (readBytes(1)[0] == 'o') {
-				return true;
-			} else {
+	private boolean doLevelSI(int level) {
+
+		if (levelSI != level) {
+			try {
+				send(frame('k').put(encodeArg(level)));
+				if (readOk()) {
+					levelSI = level;
+					return true;
+				} else {
+					return false;
+				}
+			} catch (Exception e) {
 				return false;
 			}
-		} catch (Exception e) {
-			return false;
+		} else {
+			return true;
 		}
 	}
 
-	synchronized boolean commandMicDist(int distance) {
-		final byte[] cmd_mic_dist = { 'k', '@', encodeArg(distance) };
+	CompletableFuture<Boolean> commandMicDist(int distance) {
+		return submit("micDist", () -> doMicDist(distance));
+	}
 
-		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_mic_dist);
-			if (readBytes(1)[0] == 'o') {
-				return true;
-			} else {
+	private boolean doMicDist(int distance) {
+
+		if (micDist != distance) {
+			try {
+				send(frame('k').put((byte) '@').put(encodeArg(distance)));
+				if (readOk()) {
+					micDist = distance;
+					return true;
+				} else {
+					return false;
+				}
+			} catch (Exception e) {
 				return false;
 			}
-		} catch (Exception e) {
-			return false;
+		} else {
+			return true;
 		}
 	}
 
-	synchronized boolean commandPlayDTMF(int index, int duration) {
-		final byte[] cmd_play_dtmf = { 'w', '@', encodeArg(index),
-				encodeArg(duration) };
+	CompletableFuture<Boolean> commandPlayDTMF(int index, int duration) {
+		return submit("playDTMF", () -> doPlayDTMF(index, duration));
+	}
+
+	private boolean doPlayDTMF(int index, int duration) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_play_dtmf);
-			if (readBytes(1, EasyVR.RESPONSE_LONG_TIMEOUT)[0] == 'o') {
+			send(frame('w').put((byte) '@').put(encodeArg(index)).put(
+					encodeArg(duration)));
+			if (readStatus(EasyVR.RESPONSE_LONG_TIMEOUT) == 'o') {
 				return true;
 			} else {
 				return false;
@@ -337,14 +1254,16 @@ public class CommunicationHandler implements CommPortListener {
 		}
 	}
 
-	synchronized boolean commandPlaySX(int index, int volume) {
-		final byte[] cmd_play_sx = { 'w', encodeArg(index / 32),
-				encodeArg(index % 32), encodeArg(volume) };
+	CompletableFuture<Boolean> commandPlaySX(int index, int volume) {
+		return submit("playSX", () -> doPlaySX(index, volume));
+	}
+
+	private boolean doPlaySX(int index, int volume) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_play_sx);
-			if (readBytes(1, EasyVR.RESPONSE_LONG_TIMEOUT)[0] == 'o') {
+			send(frame('w').put(encodeArg(index / 32)).put(
+					encodeArg(index % 32)).put(encodeArg(volume)));
+			if (readStatus(EasyVR.RESPONSE_LONG_TIMEOUT) == 'o') {
 				return true;
 			} else {
 				return false;
@@ -354,65 +1273,68 @@ public class CommunicationHandler implements CommPortListener {
 		}
 	}
 
-	synchronized boolean commandRecogSD(int group) {
-		final byte[] cmd_recog_sd = { 'd', encodeArg(group) };
+	CompletableFuture<Boolean> commandRecogSD(int group) {
+		return submit("recogSD", () -> doRecogSD(group));
+	}
+
+	private boolean doRecogSD(int group) {
 
 		if (mode != MODE_UNDEF) {
-			commandBreak();
+			doBreak();
 		}
 		try {
-			commPort.clear();
-			commPort.setListener(this);
-			commPort.writeBytes(cmd_recog_sd);
-			mode = MODE_RECOG_SD;
-			index = group;
+			arm(MODE_RECOG_SD, group, frame('d').put(encodeArg(group)));
 			return true;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
-	synchronized boolean commandRecogSI(int group) {
-		final byte[] cmd_recog_si = { 'i', encodeArg(group) };
+	CompletableFuture<Boolean> commandRecogSI(int group) {
+		return submit("recogSI", () -> doRecogSI(group));
+	}
+
+	private boolean doRecogSI(int group) {
 
 		if (mode != MODE_UNDEF) {
-			commandBreak();
+			doBreak();
 		}
 		try {
-			commPort.clear();
-			commPort.setListener(this);
-			commPort.writeBytes(cmd_recog_si);
-			mode = MODE_RECOG_SI;
-			index = group;
+			arm(MODE_RECOG_SI, group, frame('i').put(encodeArg(group)));
 			return true;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
-	synchronized boolean commandRemoveSD(int group, int position) {
-		final byte[] cmd_ungroup_sd = { 'u', encodeArg(group),
-				encodeArg(position) };
+	CompletableFuture<Boolean> commandRemoveSD(int group, int position) {
+		return submit("removeSD", () -> doRemoveSD(group, position));
+	}
+
+	private boolean doRemoveSD(int group, int position) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_ungroup_sd);
-			if (readBytes(1)[0] != 'o') {
+			send(frame('u').put(encodeArg(group)).put(encodeArg(position)));
+			if (!readOk()) {
 				return false;
 			}
+			commandTable.remove(group, position);
 			return true;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
-	synchronized boolean commandResetAll() {
-		final byte[] cmd_resetall = { 'r', 'R' };
+	CompletableFuture<Boolean> commandResetAll() {
+		return submit("resetAll", () -> doResetAll());
+	}
+
+	private boolean doResetAll() {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_resetall);
-			if (readBytes(1)[0] == 'o') {
+			send(frame('r').put((byte) 'R'));
+			if (readOk()) {
+				commandTable.reset();
 				return true;
 			} else {
 				return false;
@@ -422,17 +1344,19 @@ public class CommunicationHandler implements CommPortListener {
 		}
 	}
 
-	synchronized boolean commandTimeout(int seconds) {
-		final byte[] cmd_timeout = { 'o', encodeArg(seconds) };
+	CompletableFuture<Boolean> commandTimeout(int seconds) {
+		return submit("timeout", () -> doTimeout(seconds));
+	}
+
+	private boolean doTimeout(int seconds) {
 
 		if (recogTimeout != seconds) {
 			try {
 				if (mode != MODE_UNDEF) {
-					commandBreak();
+					doBreak();
 				}
-				commPort.clear();
-				commPort.writeBytes(cmd_timeout);
-				if (readBytes(1)[0] == 'o') {
+				send(frame('o').put(encodeArg(seconds)));
+				if (readOk()) {
 					recogTimeout = seconds;
 					return true;
 				} else {
@@ -446,103 +1370,329 @@ public class CommunicationHandler implements CommPortListener {
 		}
 	}
 
-	synchronized String commandTrainSD(int group, int position) {
-		final byte[] cmd_train_sd = { 't', encodeArg(group),
-				encodeArg(position) };
+	CompletableFuture<TrainResult> commandTrainSD(int group, int position) {
+		return submit("trainSD", () -> {
+			TrainResult result = doTrainSD(group, position);
+			if (result != null) {
+				refreshEntry(group, position);
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Reloads an entry of the command table mirror from the module, if its
+	 * group is loaded.
+	 * 
+	 * @param group
+	 *            the group index
+	 * @param position
+	 *            the command position
+	 */
+	private void refreshEntry(int group, int position) {
+		if (commandTable.isLoaded(group)) {
+			commandTable.update(group, position, doDumpEntry(group, position));
+		}
+	}
+
+	private TrainResult doTrainSD(int group, int position) {
 
 		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_train_sd);
-			switch (readBytes(1, 5000)[0]) { // training timeout is 3 seconds,
-												// we wait up tu 5 seconds
+			send(frame('t').put(encodeArg(group)).put(encodeArg(position)));
+			switch (readStatus(5000)) { // training timeout is 3 seconds,
+										// we wait up tu 5 seconds
 			case 'o':
-				return "trained";
+				return TrainResult.TRAINED;
 			case 'r':
-				return ("similar_to_sd " + decodeArg(readBytes(1)[0]));
+				if (readBytes(0, 1) == 1) {
+					return new TrainResult(TrainResult.Outcome.SIMILAR_TO_SD,
+							decodeArg(rxBuffer[0]));
+				}
+				break;
 			case 's':
-				return ("similar_to_si " + decodeArg(readBytes(1)[0]));
+				if (readBytes(0, 1) == 1) {
+					return new TrainResult(TrainResult.Outcome.SIMILAR_TO_SI,
+							decodeArg(rxBuffer[0]));
+				}
+				break;
 			case 'e':
-				byte[] resa = readBytes(2);
-				return ("error " + decodeArg((byte) (resa[0] * 16 + resa[1])));
+				if (readBytes(0, 2) == 2) {
+					return new TrainResult(TrainResult.Outcome.ERROR, 16
+							* decodeArg(rxBuffer[0]) + decodeArg(rxBuffer[1]));
+				}
+				break;
 			}
 		} catch (Exception e) {
 		}
 		return null;
 	}
 
-	synchronized boolean commandTransmitDelay(int time) {
-		final byte[] cmd_timeout = { 'y', encodeArg(time) };
+	CompletableFuture<Boolean> commandTransmitDelay(int time) {
+		return submit("transmitDelay", () -> doTransmitDelay(time));
+	}
 
-		try {
-			commPort.clear();
-			commPort.writeBytes(cmd_timeout);
-			if (readBytes(1)[0] == 'o') {
-				return true;
-			} else {
+	private boolean doTransmitDelay(int time) {
+
+		if (transmitDelay != time) {
+			try {
+				send(frame('y').put(encodeArg(time)));
+				if (readOk()) {
+					transmitDelay = time;
+					return true;
+				} else {
+					return false;
+				}
+			} catch (Exception e) {
 				return false;
 			}
-		} catch (Exception e) {
-			return false;
+		} else {
+			return true;
 		}
 	}
 
-	private byte[] readBytes(int len) throws CommPortException,
-			CommPortTimeoutException {
+	/**
+	 * Writes bytes to the module. Called by both the I/O and the listener
+	 * threads, see {@link #start()}.
+	 * 
+	 * @param bytes
+	 *            the bytes
+	 * @param frame
+	 *            {@code true} if the bytes are a command frame,
+	 *            {@code false} for acknowledges
+	 * @throws CommPortException
+	 */
+	private void write(byte[] bytes, boolean frame) throws CommPortException {
+		synchronized (txLock) {
+			lastActivity = System.nanoTime();
+			if (trace != null) {
+				trace.record(frame ? WireTrace.TX | WireTrace.START
+						: WireTrace.TX, bytes);
+			}
+			commPort.writeBytes(bytes);
+		}
+	}
 
-		return readBytes(len, EasyVR.RESPONSE_TIMEOUT);
+	/**
+	 * Starts building a command frame in the shared transmit buffer. Only
+	 * one frame can be built at a time.
+	 * 
+	 * @param cmd
+	 *            the command character
+	 * @return the transmit buffer
+	 */
+	private ByteBuffer frame(char cmd) {
+		txBuffer.clear();
+		return txBuffer.put((byte) cmd);
 	}
 
-	private byte[] readBytes(int len, int timeoutMillis)
-			throws CommPortException, CommPortTimeoutException {
-		byte[] result = new byte[len];
-		int count = -1;
+	/**
+	 * Copies a command frame to a reusable array of the same length.
+	 * 
+	 * @param frame
+	 *            the frame built with {@link #frame(char)}
+	 * @return the frame bytes
+	 */
+	private byte[] toBytes(ByteBuffer frame) {
+		int len = frame.position();
+		byte[] cmd = txFrames[len];
+		if (cmd == null) {
+			cmd = new byte[len];
+			txFrames[len] = cmd;
+		}
+		System.arraycopy(frame.array(), 0, cmd, 0, len);
+		return cmd;
+	}
 
-		for (int i = 0; i < len; i++) {
-			if (commPort.readBytes(result, i, 1, timeoutMillis) == 1) {
-				commPort.writeBytes(SPACE_BYTES);
-			} else {
-				count = i;
+	/**
+	 * Writes a command whose reply is collected by {@link #readBytes}.
+	 * 
+	 * @param frame
+	 *            the frame built with {@link #frame(char)}
+	 * @throws CommPortException
+	 */
+	private void send(ByteBuffer frame) throws CommPortException {
+		byte[] cmd = toBytes(frame);
+		commPort.clear();
+		synchronized (replyLock) {
+			if (taskGeneration != abortGeneration) {
+				throw new CancellationException();
 			}
+			replyHead = 0;
+			replyTail = 0;
+			replyExpected = true;
 		}
-		return (count == -1) ? result : Arrays.copyOf(result, count);
+		write(cmd, true);
 	}
 
-	private static Integer decodeArg(Byte b) {
+	/**
+	 * Writes a recognition command whose result is handled asynchronously by
+	 * {@link #onRead(byte[])}.
+	 * 
+	 * @param recogMode
+	 *            the recognition mode
+	 * @param group
+	 *            the group index
+	 * @param frame
+	 *            the frame built with {@link #frame(char)}
+	 * @throws CommPortException
+	 */
+	private void arm(int recogMode, int group, ByteBuffer frame)
+			throws CommPortException {
+		byte[] cmd = toBytes(frame);
+		commPort.clear();
+		synchronized (replyLock) {
+			replyExpected = false;
+		}
+		synchronized (recogLock) {
+			index = group;
+			rootIndex = group;
+			rootMode = recogMode;
+			asynReadState = ASYN_READ_STATE_UNDEF;
+			mode = recogMode;
+			armNanos = System.nanoTime();
+			write(cmd, true);
+		}
+	}
+
+	private int readStatus() {
 
-		return (b != null) ? b - 'A' : null;
+		return readStatus(EasyVR.RESPONSE_TIMEOUT);
 	}
 
-	private static String decodeLabel(String data) {
-		StringBuffer sb = new StringBuffer();
+	/**
+	 * Reads the status byte of a reply, counting anything other than a
+	 * success status as a protocol error.
+	 * 
+	 * @return {@code true} if the status is a success
+	 */
+	private boolean readOk() {
+		int status = readStatus();
+		if (status != 'o' && status != -1) {
+			countProtocolError();
+		}
+		return status == 'o';
+	}
 
-		for (int i = 0; i < data.length(); i++) {
-			char c = data.charAt(i);
-			if (c == '^') {
-				sb.append(data.charAt(++i) - 'A');
-			} else {
-				sb.append(c);
+	/**
+	 * Reads the status byte of a reply.
+	 * 
+	 * @param timeoutMillis
+	 *            the reply timeout
+	 * @return the status byte or -1 if none was received in time
+	 */
+	private int readStatus(int timeoutMillis) {
+
+		return (readBytes(0, 1, timeoutMillis) == 1) ? rxBuffer[0] : -1;
+	}
+
+	private int readBytes(int offset, int len) {
+
+		return readBytes(offset, len, EasyVR.RESPONSE_TIMEOUT);
+	}
+
+	/**
+	 * Reads a reply frame into {@link #rxBuffer}. Reply bytes are queued and
+	 * acknowledged by {@link #onRead(byte[])}; the whole frame is bound to a
+	 * single deadline, so the call never waits longer than
+	 * {@code timeoutMillis} regardless of the frame length.
+	 * 
+	 * @param offset
+	 *            the offset in {@code rxBuffer} to start writing at
+	 * @param len
+	 *            the frame length
+	 * @param timeoutMillis
+	 *            the frame timeout
+	 * @return the number of bytes read, less than {@code len} if the deadline
+	 *         expired or the command was aborted by a break
+	 */
+	private int readBytes(int offset, int len, int timeoutMillis) {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		int count = 0;
+
+		synchronized (replyLock) {
+			while (count < len && taskGeneration == abortGeneration) {
+				if (replyHead < replyTail) {
+					rxBuffer[offset + count++] = replyQueue[replyHead++];
+					continue;
+				}
+				long remaining = (deadline - System.nanoTime()) / 1000000L;
+				if (remaining <= 0) {
+					if (!probing) {
+						countTimeout();
+					}
+					break;
+				}
+				try {
+					replyLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
 			}
 		}
-		return sb.toString();
+		return count;
+	}
+
+	private void countTimeout() {
+		Task<?> task = currentTask;
+		if (task != null) {
+			task.metrics.timeout();
+		}
 	}
 
-	private static byte encodeArg(int i) {
+	private void countProtocolError() {
+		Task<?> task = currentTask;
+		if (task != null) {
+			task.metrics.protocolError();
+		}
+	}
 
-		return (byte) (i + 'A');
+	private void countRetry() {
+		Task<?> task = currentTask;
+		if (task != null) {
+			task.metrics.retry();
+		}
 	}
 
-	private static byte[] encodeLabel(String label) {
-		StringBuffer sb = new StringBuffer();
+	/**
+	 * A command queued for the I/O thread.
+	 */
+	private static class Task<T> {
 
-		for (int i = 0; i < label.length(); i++) {
-			char c = label.charAt(i);
-			if (c >= '0' && c <= '9') {
-				sb.append('^');
-				sb.append((char) (c - '0' + 'A'));
-			} else if (c >= 'A' && c <= 0x60) {
-				sb.append(c);
+		private final CommandMetrics metrics;
+		private final Callable<T> callable;
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		/** Abort generation of a preempting task, -1 for the others */
+		private int generation = -1;
+
+		Task(CommandMetrics metrics, Callable<T> callable) {
+			this.metrics = metrics;
+			this.callable = callable;
+		}
+
+		void run() {
+			if (future.isDone()) {
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				T result = callable.call();
+				metrics.record(System.nanoTime() - start, isSuccess(result));
+				future.complete(result);
+			} catch (Throwable t) {
+				metrics.record(System.nanoTime() - start, false);
+				future.completeExceptionally(t);
+			}
+		}
+
+		private static boolean isSuccess(Object result) {
+			if (result instanceof Boolean) {
+				return (Boolean) result;
+			}
+			if (result instanceof Integer) {
+				return (Integer) result >= 0;
 			}
+			return result != null;
 		}
-		return sb.toString().getBytes(StandardCharsets.US_ASCII);
 	}
 }
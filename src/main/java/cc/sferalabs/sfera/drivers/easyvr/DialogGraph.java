@@ -0,0 +1,101 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of transitions between recognition steps. A step is the
+ * recognition of a group, either of speaker-dependent custom commands (SD) or
+ * of speaker-independent built-in words (SI). When the recognition of a step
+ * returns a position that has a transition, the next step is armed directly
+ * by the {@link CommunicationHandler} and no event is posted.
+ */
+class DialogGraph {
+
+	/** Position matching any recognized command or word */
+	static final int ANY_POSITION = -1;
+
+	static final DialogGraph EMPTY = new DialogGraph(
+			new int[2 * EasyVR.GROUPS * (EasyVR.POSITIONS + 1)]);
+
+	/**
+	 * For each step and position (shifted by one to fit
+	 * {@link #ANY_POSITION}) the next step plus one, or 0 if none
+	 */
+	private final int[] next;
+
+	private DialogGraph(int[] next) {
+		this.next = next;
+	}
+
+	/**
+	 * Returns a copy of this graph with an additional transition.
+	 * 
+	 * @param speakerDependent
+	 *            the type of the source step
+	 * @param group
+	 *            the group of the source step
+	 * @param position
+	 *            the recognized position or {@link #ANY_POSITION}
+	 * @param nextSpeakerDependent
+	 *            the type of the next step
+	 * @param nextGroup
+	 *            the group of the next step
+	 * @return the new graph
+	 */
+	DialogGraph with(boolean speakerDependent, int group, int position,
+			boolean nextSpeakerDependent, int nextGroup) {
+		int[] copy = Arrays.copyOf(next, next.length);
+		copy[slot(speakerDependent, group, position)] = step(
+				nextSpeakerDependent, nextGroup) + 1;
+		return new DialogGraph(copy);
+	}
+
+	/**
+	 * Looks up the step following a recognition result.
+	 * 
+	 * @param speakerDependent
+	 *            the type of the current step
+	 * @param group
+	 *            the group of the current step
+	 * @param position
+	 *            the recognized position
+	 * @return the next step, or -1 if the result is a final outcome
+	 */
+	int next(boolean speakerDependent, int group, int position) {
+		if (position < 0 || position >= EasyVR.POSITIONS) {
+			return -1;
+		}
+		int n = next[slot(speakerDependent, group, position)];
+		if (n == 0) {
+			n = next[slot(speakerDependent, group, ANY_POSITION)];
+		}
+		return n - 1;
+	}
+
+	/**
+	 * @param step
+	 *            a step returned by {@link #next(boolean, int, int)}
+	 * @return whether the step is a speaker-dependent recognition
+	 */
+	static boolean isSpeakerDependent(int step) {
+		return step >= EasyVR.GROUPS;
+	}
+
+	/**
+	 * @param step
+	 *            a step returned by {@link #next(boolean, int, int)}
+	 * @return the group of the step
+	 */
+	static int group(int step) {
+		return step % EasyVR.GROUPS;
+	}
+
+	private static int step(boolean speakerDependent, int group) {
+		return (speakerDependent ? EasyVR.GROUPS : 0) + group;
+	}
+
+	private static int slot(boolean speakerDependent, int group, int position) {
+		return step(speakerDependent, group) * (EasyVR.POSITIONS + 1)
+				+ position + 1;
+	}
+}
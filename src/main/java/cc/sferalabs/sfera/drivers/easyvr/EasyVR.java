@@ -1,8 +1,25 @@
 package cc.sferalabs.sfera.drivers.easyvr;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
+
 import cc.sferalabs.sfera.drivers.Driver;
 import cc.sferalabs.sfera.drivers.easyvr.events.ConnectionEvent;
 import cc.sferalabs.sfera.drivers.easyvr.events.RecogSDEvent;
+import cc.sferalabs.sfera.drivers.easyvr.events.RecogSIEvent;
 import cc.sferalabs.sfera.events.Bus;
 import cc.sferalabs.sfera.io.comm.CommPort;
 import cc.sferalabs.sfera.io.comm.CommPortException;
@@ -17,9 +34,16 @@ import cc.sferalabs.sfera.core.Configuration;
  * with EasyVR 3 firmware version 8.
  * 
  * @sfera.config serial_port
- *            mandatory serial port name
+ *            mandatory serial port name. A comma-separated list of port
+ *            names creates a pool of modules acting as a single recognizer:
+ *            recognition and settings commands are sent to all the modules
+ *            and their results are merged, while custom command table,
+ *            training and playback commands are sent to the first module
  * @sfera.config baud_rate
- *            optional baud rate (9600-115200). Default is 9600
+ *            optional maximum baud rate (9600-115200). The connection is
+ *            established at 9600 baud, then both ends switch to the fastest
+ *            rate not above this value that passes a verification round
+ *            trip. Default is 115200
  * @sfera.config level
  *            the strictness level to use for recognition of speaker-dependent
  *            custom commands (1-5): 1 = easy; 2 = average (default); 5 = hard.
@@ -33,6 +57,29 @@ import cc.sferalabs.sfera.core.Configuration;
  *            the language to use for recognition of built-in words: 0 = English
  *            (default); 1 = Italian; 2 = Japanese; 3 = German; 4 = Spanish; 5 =
  *            French
+ * @sfera.config init_timeout
+ *            the maximum time in milliseconds to wait for the module to
+ *            answer at startup. Default is 10000
+ * @sfera.config event_queue
+ *            the maximum number of recognition events waiting to be
+ *            delivered to the subscribers, which run on a dedicated thread.
+ *            Default is 64
+ * @sfera.config event_overflow
+ *            what to do when a recognition event is generated and the event
+ *            queue is full: drop_oldest = discard the oldest queued event
+ *            (default); coalesce = replace a queued event with the same ID,
+ *            or else discard the oldest one; block = wait for room, which
+ *            stalls the serial communication while a subscriber is slow
+ * @sfera.config trace_size
+ *            the number of most recent bytes exchanged with each module kept
+ *            in memory, with their timestamps, for
+ *            {@link #dumpTrace(int, String)}. 0 disables tracing. Default is
+ *            65536
+ * @sfera.config pool_window
+ *            the time window in milliseconds within which results from
+ *            different modules of a pool are considered the same utterance.
+ *            The first valid result is reported, or the first error if none
+ *            is valid. Default is 300
  * 
  * @author Ulderico Arcidiaco
  *
@@ -45,80 +92,635 @@ public class EasyVR extends Driver {
 
 	static final int RESPONSE_TIMEOUT = 2000;
 	static final int RESPONSE_LONG_TIMEOUT = 60000;
+	static final int GROUPS = 17;
+	static final int POSITIONS = 32;
+	private static final int PING_INTERVAL = 5000;
+	/**
+	 * Ping interval of a module that is listening: the ping interrupts the
+	 * recognition, so it is only sent after a longer silence. A module in
+	 * continuous recognition with a shorter recognition timeout is re-armed
+	 * at every timeout, so it is never pinged.
+	 */
+	private static final int LISTEN_PING_INTERVAL = 12 * PING_INTERVAL;
+	private static final int MAX_PING_FAILURES = 2;
+	private static final long RECONNECT_MIN_DELAY = 1000;
+	private static final long RECONNECT_MAX_DELAY = 60000;
+
+	private static final ScheduledExecutorService TIMER = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "EasyVR timer");
+				t.setDaemon(true);
+				return t;
+			});
+
+	private ConfigSource config;
+	private PortFactory portFactory = CommPort::open;
+	private Module[] modules;
+	/** The handler of the first module of the pool */
+	private volatile CommunicationHandler commHandler;
+	private ResultMerger merger;
+	private EventDispatcher dispatcher;
+	private final Metrics metrics = new Metrics();
+	private ObjectName mbeanName;
+	private boolean connected = false;
+
+	/**
+	 * Opens the serial port of a module.
+	 */
+	interface PortFactory {
+
+		CommPort open(String portName) throws CommPortException;
+	}
+
+	/**
+	 * Source of the configuration values, the driver {@link Configuration}
+	 * outside of tests.
+	 */
+	interface ConfigSource {
 
-	private CommPort commPort;
-	private CommunicationHandler commHandler;
+		/**
+		 * @param <T>
+		 *            the type of the value
+		 * @param key
+		 *            the configuration key
+		 * @param defaultValue
+		 *            the value returned if the key is not set
+		 * @return the configured value or the default one
+		 */
+		<T> T get(String key, T defaultValue);
+	}
+
+	/**
+	 * A module of the pool and the state of its connection.
+	 */
+	private static class Module {
+
+		private final String portName;
+		private final WireTrace trace;
+		private volatile CommPort commPort;
+		private volatile CommunicationHandler commHandler;
+		private int pingFailures = 0;
+		private long reconnectDelay = RECONNECT_MIN_DELAY;
+		private long nextReconnect = System.nanoTime();
+
+		Module(String portName, int traceSize) {
+			this.portName = portName;
+			this.trace = (traceSize > 0) ? new WireTrace(traceSize) : null;
+		}
+	}
 
 	public EasyVR(String id) {
 		super(id);
 	}
 
+	/**
+	 * Replaces the way serial ports are opened, e.g. to connect to simulated
+	 * modules in tests. Must be called before the driver is initialized.
+	 * 
+	 * @param portFactory
+	 *            the port factory
+	 */
+	void setPortFactory(PortFactory portFactory) {
+		this.portFactory = portFactory;
+	}
+
 	@Override
 	protected boolean onInit(Configuration config) throws InterruptedException {
 
+		return init(config::get);
+	}
+
+	/**
+	 * Connects to the modules with the specified configuration.
+	 * 
+	 * @param config
+	 *            the configuration
+	 * @return {@code true} if successful
+	 * @throws InterruptedException
+	 */
+	boolean init(ConfigSource config) throws InterruptedException {
+
 		String portName = config.get("serial_port", null);
 		if (portName == null) {
 			log.error("Serial port not set");
 			return false;
 		}
 
+		this.config = config;
+		EventDispatcher.Policy policy;
 		try {
-			commPort = CommPort.open(portName);
-			int baudRate = config.get("baud_rate", 9600);
-			commPort.setParams(baudRate, 8, 1, CommPort.PARITY_NONE,
-					CommPort.FLOWCONTROL_NONE);
-			commHandler = new CommunicationHandler(this, commPort, log);
-			Thread.sleep(1000); // wait 1 second before sending first command
-			if (!commHandler.commandBreak()) {
-				log.error("Error initializing EasyVR: handshake error");
-				return false;
-			}
-			if (!commHandler.commandTransmitDelay(0)) {
-				log.error("Error initializing EasyVR: transmit delay setting error");
+			policy = EventDispatcher.Policy.valueOf(config.get(
+					"event_overflow",
+					EventDispatcher.DEFAULT_POLICY.name()).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid event_overflow value");
+			return false;
+		}
+		dispatcher = new EventDispatcher(config.get("event_queue", 64), policy,
+				log);
+		registerMBean();
+		String[] portNames = portName.split(",");
+		modules = new Module[portNames.length];
+		for (int i = 0; i < portNames.length; i++) {
+			modules[i] = new Module(portNames[i].trim(), config.get(
+					"trace_size", 65536));
+			if (!connect(modules[i])) {
 				return false;
 			}
-			if (commHandler.commandID() < 2) {
-				log.error("Error initializing EasyVR: device ID mismatch");
-				return false;
+		}
+		commHandler = modules[0].commHandler;
+		if (modules.length > 1) {
+			merger = new ResultMerger(modules.length, config.get(
+					"pool_window", 300), TIMER, this::postRecognition);
+		}
+		commHandler.loadCommandTable().thenAccept(loaded -> {
+			if (!loaded) {
+				log.warn("Custom command table not fully loaded");
 			}
-			if (!commHandler.commandTimeout(0)) {
-				log.error("Error initializing EasyVR: timeout setting error");
-				return false;
+		});
+		setConnected(true);
+		return true;
+	}
+
+	/**
+	 * Opens and initializes the serial port of a module. On success the
+	 * module's port and handler are replaced with the new ones.
+	 * 
+	 * @param module
+	 *            the module
+	 * @return {@code true} if successful
+	 */
+	private boolean connect(Module module) {
+
+		CommPort port = null;
+		CommunicationHandler handler = null;
+		try {
+			port = portFactory.open(module.portName);
+			port.setParams(CommunicationHandler.DEFAULT_BAUD_RATE, 8, 1,
+					CommPort.PARITY_NONE, CommPort.FLOWCONTROL_NONE);
+			handler = new CommunicationHandler(this, port, log, module.trace);
+			handler.start();
+			String error = initialize(handler);
+			if (error == null) {
+				module.commPort = port;
+				module.commHandler = handler;
+				return true;
 			}
-			if (!commHandler.commandLevelSD(config.get("level", 2))) {
-				log.error("Error initializing EasyVR: SD strictness level setting error");
-				return false;
+			log.error("Error initializing EasyVR on {}: {}", module.portName,
+					error);
+		} catch (CommPortException e) {
+			log.error("Error initializing serial port " + module.portName, e);
+		}
+		if (handler != null) {
+			handler.close();
+		}
+		closePort(port);
+		return false;
+	}
+
+	/**
+	 * Performs the handshake and applies the configured settings.
+	 * 
+	 * @param handler
+	 *            the handler of the module
+	 * @return {@code null} if successful, or a description of the error
+	 */
+	private String initialize(CommunicationHandler handler) {
+
+		if (!await(handler.commandHandshake(config.get("init_timeout", 10000)),
+				false)) {
+			return "handshake error";
+		}
+		if (!await(handler.commandTransmitDelay(0), false)) {
+			return "transmit delay setting error";
+		}
+		if (await(handler.commandID(), -1) < 2) {
+			return "device ID mismatch";
+		}
+		if (!await(handler.commandTimeout(0), false)) {
+			return "timeout setting error";
+		}
+		if (!await(handler.commandLevelSD(config.get("level", 2)), false)) {
+			return "SD strictness level setting error";
+		}
+		if (!await(handler.commandLevelSI(config.get("knob", 2)), false)) {
+			return "SI strictness level setting error";
+		}
+		if (!await(handler.commandLanguageSI(config.get("language", 0)),
+				false)) {
+			return "SI language setting error";
+		}
+		int baudRate = await(
+				handler.commandBaudRate(config.get("baud_rate", 115200)), -1);
+		if (baudRate < 0) {
+			return "baud rate negotiation error";
+		}
+		log.debug("EasyVR connected at {} baud", baudRate);
+		return null;
+	}
+
+	private static void closePort(CommPort port) {
+
+		if (port != null) {
+			try {
+				port.close();
+			} catch (Exception e) {
 			}
-			if (!commHandler.commandLevelSI(config.get("knob", 2))) {
-				log.error("Error initializing EasyVR: SI strictness level setting error");
-				return false;
+		}
+	}
+
+	/**
+	 * Called by the communication handlers on every recognition result.
+	 * 
+	 * @param speakerDependent
+	 *            {@code true} for custom commands, {@code false} for built-in
+	 *            words
+	 * @param group
+	 *            the group index
+	 * @param value
+	 *            the recognized position or the negative error code
+	 * @param label
+	 *            the label of the recognized command, if known
+	 */
+	void onRecognition(boolean speakerDependent, int group, int value,
+			String label) {
+
+		if (merger != null) {
+			if (speakerDependent && label == null) {
+				// the pool shares the command table of the first module
+				CommandInfo entry = commHandler.getCommandTable().get(group,
+						value);
+				if (entry != null) {
+					label = entry.getLabel();
+				}
 			}
-			if (!commHandler.commandLanguageSI(config.get("language", 0))) {
-				log.error("Error initializing EasyVR: SI language setting error");
-				return false;
+			merger.offer(speakerDependent, group, value, label);
+		} else {
+			postRecognition(speakerDependent, group, value, label);
+		}
+	}
+
+	private void postRecognition(boolean speakerDependent, int group,
+			int value, String label) {
+
+		try {
+			if (speakerDependent) {
+				dispatcher.post(new RecogSDEvent(this, group, value, label));
+			} else {
+				dispatcher.post(new RecogSIEvent(this, group, value));
 			}
-			Bus.postIfChanged(new ConnectionEvent(this, true));
-			return true;
-		} catch (CommPortException e) {
-			log.error("Error initializing serial port", e);
-			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of recognition events waiting to be delivered to
+	 * the subscribers.
+	 * 
+	 * @return the event queue depth
+	 */
+	public int getEventQueueDepth() {
+
+		return (dispatcher == null) ? 0 : dispatcher.getQueueDepth();
+	}
+
+	/**
+	 * Returns the number of recognition events discarded or coalesced
+	 * because the event queue was full.
+	 * 
+	 * @return the number of dropped events
+	 */
+	public long getDroppedEventCount() {
+
+		return (dispatcher == null) ? 0 : dispatcher.getDropped();
+	}
+
+	/**
+	 * Sends a command to all the modules of the pool.
+	 * 
+	 * @param command
+	 *            the command to send
+	 * @return a future completed with {@code true} if successful on all the
+	 *         modules
+	 */
+	private CompletableFuture<Boolean> broadcast(
+			Function<CommunicationHandler, CompletableFuture<Boolean>> command) {
+
+		CompletableFuture<Boolean> result = command
+				.apply(modules[0].commHandler);
+		for (int i = 1; i < modules.length; i++) {
+			result = result.thenCombine(command.apply(modules[i].commHandler),
+					(a, b) -> a && b);
 		}
+		return result;
 	}
 
+	/**
+	 * Supervises the connection to the modules: idle modules are pinged,
+	 * listening ones less often, and modules that stop answering, or whose
+	 * serial port fails, are reconnected with exponential backoff. On
+	 * reconnection the settings, the custom command table mirror and the
+	 * active recognition are restored.
+	 */
 	@Override
 	protected boolean loop() throws InterruptedException {
 
 		Thread.sleep(1000);
+		boolean online = true;
+		for (Module module : modules) {
+			online &= supervise(module);
+		}
+		setConnected(online);
+		return true;
+	}
+
+	/**
+	 * Checks the connection to a module, reconnecting it if needed.
+	 * 
+	 * @param module
+	 *            the module
+	 * @return {@code true} if the module is online
+	 */
+	private boolean supervise(Module module) {
+
+		CommunicationHandler handler = module.commHandler;
+		if (!handler.isFailed()) {
+			if (!handler.isIdle(handler.isListening() ? LISTEN_PING_INTERVAL
+					: PING_INTERVAL)) {
+				return true;
+			}
+			if (await(handler.commandPing(), false)) {
+				module.pingFailures = 0;
+				return true;
+			}
+			if (++module.pingFailures < MAX_PING_FAILURES) {
+				return true;
+			}
+			log.warn("EasyVR on {} not responding", module.portName);
+		}
+
+		long now = System.nanoTime();
+		if (now - module.nextReconnect < 0) {
+			return false;
+		}
+		handler.close();
+		closePort(module.commPort);
+		if (!connect(module)) {
+			module.nextReconnect = now + module.reconnectDelay * 1000000L;
+			module.reconnectDelay = Math.min(module.reconnectDelay * 2,
+					RECONNECT_MAX_DELAY);
+			return false;
+		}
+		CommunicationHandler newHandler = module.commHandler;
+		newHandler.adopt(handler);
+		if (!await(newHandler.commandResume(handler), false)) {
+			log.warn("EasyVR on {}: state not fully restored",
+					module.portName);
+		}
+		if (module == modules[0]) {
+			commHandler = newHandler;
+		}
+		module.pingFailures = 0;
+		module.reconnectDelay = RECONNECT_MIN_DELAY;
+		log.info("EasyVR on {} reconnected", module.portName);
 		return true;
 	}
 
+	private void setConnected(boolean connected) {
+
+		if (this.connected != connected) {
+			this.connected = connected;
+			Bus.postIfChanged(new ConnectionEvent(this, connected));
+		}
+	}
+
 	@Override
 	protected void onQuit() {
 
 		Bus.postIfChanged(new ConnectionEvent(this, false));
+		if (modules != null) {
+			for (Module module : modules) {
+				if (module == null) {
+					continue;
+				}
+				CommunicationHandler handler = module.commHandler;
+				if (handler != null) {
+					if (!handler.isFailed()) {
+						// leave the module at its power-on rate for the next
+						// connection
+						await(handler.commandBaudRate(
+								CommunicationHandler.DEFAULT_BAUD_RATE), -1);
+					}
+					handler.close();
+				}
+				closePort(module.commPort);
+			}
+		}
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
+		if (mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						mbeanName);
+			} catch (Exception e) {
+			}
+			mbeanName = null;
+		}
+	}
+
+	/**
+	 * Registers the {@link EasyVRMetricsMXBean} of this driver instance.
+	 */
+	private void registerMBean() {
+
+		EasyVRMetricsMXBean bean = new EasyVRMetricsMXBean() {
+
+			@Override
+			public CommandStats[] getCommandStats() {
+				return EasyVR.this.getCommandStats();
+			}
+
+			@Override
+			public int getEventQueueDepth() {
+				return EasyVR.this.getEventQueueDepth();
+			}
+
+			@Override
+			public long getDroppedEventCount() {
+				return EasyVR.this.getDroppedEventCount();
+			}
+
+			@Override
+			public void resetCommandStats() {
+				EasyVR.this.resetCommandStats();
+			}
+		};
 		try {
-			commPort.close();
+			ObjectName name = new ObjectName(
+					"cc.sferalabs.sfera.drivers.easyvr:type=EasyVR,name="
+							+ ObjectName.quote(getId()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean,
+					name);
+			mbeanName = name;
 		} catch (Exception e) {
+			log.warn("Error registering metrics MBean", e);
+		}
+	}
+
+	/**
+	 * Writes the most recent bytes exchanged with a module to a file, for
+	 * offline analysis and replay with {@link TraceReplay}.
+	 * 
+	 * @param module
+	 *            the index of the module in the pool (0 for a single module)
+	 * @param file
+	 *            the path of the file to write
+	 * @return {@code true} if successful
+	 */
+	public boolean dumpTrace(int module, String file) {
+
+		if (module < 0 || module >= modules.length
+				|| modules[module].trace == null) {
+			log.error("Error dumping trace: tracing not enabled");
+			return false;
+		}
+		try {
+			modules[module].trace.dump(Paths.get(file));
+			return true;
+		} catch (IOException e) {
+			log.error("Error dumping trace", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the most recent bytes exchanged with the first module to a file.
+	 * 
+	 * @param file
+	 *            the path of the file to write
+	 * @return {@code true} if successful
+	 * @see #dumpTrace(int, String)
+	 */
+	public boolean dumpTrace(String file) {
+
+		return dumpTrace(0, file);
+	}
+
+	/**
+	 * @return the command metrics shared by the communication handlers
+	 */
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns a snapshot of the metrics of each command type: latency
+	 * histogram and counters of failures, timeouts, protocol errors and
+	 * retries. Recognitions are also accounted from arming to result as
+	 * "recognitionSD" and "recognitionSI". The metrics are cumulative across
+	 * the modules of a pool and across reconnections.
+	 * 
+	 * @return the metrics of each command type, sorted by name
+	 */
+	public CommandStats[] getCommandStats() {
+
+		return metrics.snapshot();
+	}
+
+	/**
+	 * Resets the command metrics.
+	 */
+	public void resetCommandStats() {
+
+		metrics.reset();
+	}
+
+	/**
+	 * Hands a command future over to the caller. Completion stages attached
+	 * by the caller run outside the I/O thread, and cancelling or timing out
+	 * the returned future removes the command from the queue if it has not
+	 * started yet.
+	 * 
+	 * @param command
+	 *            the command result
+	 * @return the future to return to the caller
+	 */
+	private static <T> CompletableFuture<T> async(
+			CompletableFuture<T> command) {
+		return async(command, Function.identity());
+	}
+
+	/**
+	 * Same as {@link #async(CompletableFuture)}, converting the command
+	 * result. Cancelling the returned future still cancels the command.
+	 * 
+	 * @param command
+	 *            the command result
+	 * @param converter
+	 *            the conversion of the command result
+	 * @return the future to return to the caller
+	 */
+	private static <T, R> CompletableFuture<R> async(
+			CompletableFuture<T> command,
+			Function<? super T, ? extends R> converter) {
+		CompletableFuture<R> result = new CompletableFuture<>();
+		command.whenCompleteAsync((value, t) -> {
+			if (t == null) {
+				result.complete(converter.apply(value));
+			} else {
+				result.completeExceptionally(t);
+			}
+		});
+		result.whenComplete((value, t) -> {
+			if (t != null) {
+				command.cancel(false);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Bounds the completion time of a future returned by one of the
+	 * asynchronous methods of this driver. If the future is not complete
+	 * within the timeout it is completed exceptionally with a
+	 * {@link TimeoutException} and the command, if still queued, is not sent.
+	 * 
+	 * @param future
+	 *            the future returned by an asynchronous method
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the time unit of {@code timeout}
+	 * @return {@code future}
+	 */
+	public <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future,
+			long timeout, TimeUnit unit) {
+		ScheduledFuture<?> timer = TIMER.schedule(
+				() -> future.completeExceptionally(new TimeoutException()),
+				timeout, unit);
+		future.whenComplete((value, t) -> timer.cancel(false));
+		return future;
+	}
+
+	/**
+	 * Waits for the completion of a command queued on the I/O thread.
+	 * 
+	 * @param future
+	 *            the command result
+	 * @param fallback
+	 *            the value to return if the command fails or is cancelled
+	 * @return the command result or {@code fallback}
+	 */
+	private static <T> T await(CompletableFuture<T> future, T fallback) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return fallback;
+		} catch (ExecutionException | CancellationException e) {
+			return fallback;
 		}
 	}
 
@@ -131,20 +733,44 @@ public class EasyVR extends Driver {
 	 *            the command position (0-31)
 	 * @param label
 	 *            the text for the command's label (ASCII characters from 'A' to
-	 *            '`' and digits)
+	 *            '`' and digits, up to 31 characters with each digit counting
+	 *            as two)
 	 * @return {@code true} if successful
 	 */
 	public boolean addCommand(int group, int position, String label) {
 
-		return commHandler.commandAddSD(group, position, label);
+		return await(commHandler.commandAddSD(group, position, label), false);
 	}
 
 	/**
-	 * Interrupts pending recognition or playback operations.
+	 * Asynchronous version of {@link #addCommand(int, int, String)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> addCommandAsync(int group, int position,
+			String label) {
+
+		return async(commHandler.commandAddSD(group, position, label));
+	}
+
+	/**
+	 * Interrupts pending recognition or playback operations. The request
+	 * bypasses the command queue: queued commands are cancelled and the
+	 * command in progress, if any, fails immediately.
 	 */
 	public void stop() {
 
-		commHandler.commandBreak();
+		await(broadcast(h -> h.commandBreak()), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #stop()}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> stopAsync() {
+
+		return async(broadcast(h -> h.commandBreak()));
 	}
 
 	/**
@@ -158,7 +784,18 @@ public class EasyVR extends Driver {
 	 */
 	public boolean eraseCommand(int group, int position) {
 
-		return commHandler.commandEraseSD(group, position);
+		return await(commHandler.commandEraseSD(group, position), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #eraseCommand(int, int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> eraseCommandAsync(int group,
+			int position) {
+
+		return async(commHandler.commandEraseSD(group, position));
 	}
 
 	/**
@@ -177,7 +814,96 @@ public class EasyVR extends Driver {
 	 */
 	public String dumpCommand(int group, int position) {
 
-		return commHandler.commandDumpSD(group, position);
+		return Objects.toString(getCommandInfo(group, position), null);
+	}
+
+	/**
+	 * Asynchronous version of {@link #dumpCommand(int, int)}.
+	 * 
+	 * @return a future completed with the same value returned by
+	 *         {@link #dumpCommand(int, int)}
+	 */
+	public CompletableFuture<String> dumpCommandAsync(int group, int position) {
+
+		return async(commHandler.commandDumpSD(group, position),
+				info -> Objects.toString(info, null));
+	}
+
+	/**
+	 * Retrieves the name and training data of a custom command.
+	 * 
+	 * @param group
+	 *            the group index (0 = trigger, 1-15 = generic, 16 = password)
+	 * @param position
+	 *            the command position (0-31)
+	 * @return the command info, or null in case of errors
+	 */
+	public CommandInfo getCommandInfo(int group, int position) {
+
+		return await(commHandler.commandDumpSD(group, position), null);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getCommandInfo(int, int)}.
+	 * 
+	 * @return a future completed with the same value returned by
+	 *         {@link #getCommandInfo(int, int)}
+	 */
+	public CompletableFuture<CommandInfo> getCommandInfoAsync(int group,
+			int position) {
+
+		return async(commHandler.commandDumpSD(group, position));
+	}
+
+	/**
+	 * Exports the custom command table (groups, positions, labels and
+	 * training information) to a binary file.
+	 * 
+	 * @param file
+	 *            the path of the file to write
+	 * @return {@code true} if successful
+	 */
+	public boolean exportCommands(String file) {
+
+		if (!await(commHandler.loadCommandTable(), false)) {
+			log.error("Error exporting commands: command table not loaded");
+			return false;
+		}
+		CommandInfo[][] groups = commHandler.getCommandTable()
+				.snapshot();
+		if (groups == null) {
+			log.error("Error exporting commands: command table not loaded");
+			return false;
+		}
+		try {
+			CommandTableSnapshot.write(Paths.get(file), groups);
+			return true;
+		} catch (IOException e) {
+			log.error("Error exporting commands", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Imports a custom command table exported with
+	 * {@link #exportCommands(String)}. Commands already matching the file,
+	 * in label and position, are left untouched. Training data is not
+	 * transferred: imported commands must be trained again.
+	 * 
+	 * @param file
+	 *            the path of the file to read
+	 * @return {@code true} if successful
+	 */
+	public boolean importCommands(String file) {
+
+		CommandInfo[][] groups;
+		try {
+			groups = CommandTableSnapshot.read(Paths.get(file));
+		} catch (IOException e) {
+			log.error("Error importing commands", e);
+			return false;
+		}
+		return await(commHandler.commandRestore(groups), false);
 	}
 
 	/**
@@ -189,7 +915,18 @@ public class EasyVR extends Driver {
 	 */
 	public int getCommandCount(int group) {
 
-		return commHandler.commandCountSD(group);
+		return await(commHandler.commandCountSD(group), -1);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getCommandCount(int)}.
+	 * 
+	 * @return a future completed with the same value returned by
+	 *         {@link #getCommandCount(int)}
+	 */
+	public CompletableFuture<Integer> getCommandCountAsync(int group) {
+
+		return async(commHandler.commandCountSD(group));
 	}
 
 	/**
@@ -202,7 +939,89 @@ public class EasyVR extends Driver {
 	 */
 	public boolean recognizeCommand(int group) {
 
-		return commHandler.commandRecogSD(group);
+		return await(broadcast(h -> h.commandRecogSD(group)), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #recognizeCommand(int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> recognizeCommandAsync(int group) {
+
+		return async(broadcast(h -> h.commandRecogSD(group)));
+	}
+
+	/**
+	 * Starts recognition of the group containing the custom command with the
+	 * specified label and generates a {@link RecogSDEvent} event. The label is
+	 * resolved in memory, without querying the module.
+	 * 
+	 * @param label
+	 *            the label of a command of the group to recognize
+	 * @return {@code true} if successful, {@code false} if the label was not
+	 *         found or the recognition could not be started
+	 */
+	public boolean recognizeCommand(String label) {
+
+		int group = getCommandGroup(label);
+		if (group < 0) {
+			return false;
+		}
+		return recognizeCommand(group);
+	}
+
+	/**
+	 * Asynchronous version of {@link #recognizeCommand(String)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> recognizeCommandAsync(String label) {
+
+		int group = getCommandGroup(label);
+		if (group < 0) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return recognizeCommandAsync(group);
+	}
+
+	/**
+	 * Finds the group of the custom command with the specified label. The
+	 * label is resolved in memory, without querying the module.
+	 * 
+	 * @param label
+	 *            the command label
+	 * @return the group index of the first command with the specified label,
+	 *         or -1 if not found
+	 */
+	public int getCommandGroup(String label) {
+
+		int location = findCommand(label);
+		return (location < 0) ? -1 : location / POSITIONS;
+	}
+
+	/**
+	 * Finds the position of the custom command with the specified label. The
+	 * label is resolved in memory, without querying the module.
+	 * 
+	 * @param label
+	 *            the command label
+	 * @return the position of the first command with the specified label in
+	 *         its group, or -1 if not found
+	 */
+	public int getCommandPosition(String label) {
+
+		int location = findCommand(label);
+		return (location < 0) ? -1 : location % POSITIONS;
+	}
+
+	private int findCommand(String label) {
+
+		if (label == null) {
+			return -1;
+		}
+		return commHandler.getCommandTable().find(
+				Protocol.normalizeLabel(label));
 	}
 
 	/**
@@ -215,7 +1034,111 @@ public class EasyVR extends Driver {
 	 */
 	public boolean recognizeWord(int group) {
 
-		return commHandler.commandRecogSI(group);
+		return await(broadcast(h -> h.commandRecogSI(group)), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #recognizeWord(int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> recognizeWordAsync(int group) {
+
+		return async(broadcast(h -> h.commandRecogSI(group)));
+	}
+
+	/**
+	 * Enables or disables continuous recognition of speaker-dependent custom
+	 * commands for a group. When enabled, after each {@link RecogSDEvent} the
+	 * driver immediately restarts the recognition of the same group, without
+	 * waiting for another call to {@link #recognizeCommand(int)}, until
+	 * {@link #stop()} is called.
+	 * 
+	 * @param group
+	 *            the group index (0 = trigger, 1-15 = generic, 16 = password)
+	 * @param enabled
+	 *            {@code true} to enable continuous recognition
+	 */
+	public void setContinuousCommandRecognition(int group, boolean enabled) {
+
+		for (Module module : modules) {
+			module.commHandler.setContinuous(true, group, enabled);
+		}
+	}
+
+	/**
+	 * Enables or disables continuous recognition of speaker-independent words
+	 * for a group. When enabled, after each {@link RecogSIEvent} the driver
+	 * immediately restarts the recognition of the same group, without waiting
+	 * for another call to {@link #recognizeWord(int)}, until {@link #stop()}
+	 * is called.
+	 * 
+	 * @param group
+	 *            the word set index
+	 * @param enabled
+	 *            {@code true} to enable continuous recognition
+	 */
+	public void setContinuousWordRecognition(int group, boolean enabled) {
+
+		for (Module module : modules) {
+			module.commHandler.setContinuous(false, group, enabled);
+		}
+	}
+
+	/**
+	 * Adds a step to the recognition dialog. When the recognition of the
+	 * source group returns the specified position, the recognition of the
+	 * next group is started immediately by the driver and no event is
+	 * generated; only the outcome of the last step of the dialog generates a
+	 * {@link RecogSDEvent} or {@link RecogSIEvent}. For instance, a trigger
+	 * word in group 0 can be chained to the commands of group 1 with
+	 * {@code addDialogStep("sd", 0, -1, "sd", 1)}.
+	 * 
+	 * @param type
+	 *            the recognition type of the source group: "sd" for custom
+	 *            commands, "si" for built-in words
+	 * @param group
+	 *            the source group index (0 = trigger, 1-15 = generic, 16 =
+	 *            password)
+	 * @param position
+	 *            the recognized position (0-31), or -1 for any position
+	 * @param nextType
+	 *            the recognition type of the next group: "sd" or "si"
+	 * @param nextGroup
+	 *            the next group index
+	 * @return {@code true} if successful, {@code false} if any of the
+	 *         parameters is not valid
+	 */
+	public boolean addDialogStep(String type, int group, int position,
+			String nextType, int nextGroup) {
+
+		if (!isRecogType(type) || !isRecogType(nextType) || group < 0
+				|| group >= GROUPS || nextGroup < 0 || nextGroup >= GROUPS
+				|| position < DialogGraph.ANY_POSITION
+				|| position >= POSITIONS) {
+			return false;
+		}
+		for (Module module : modules) {
+			module.commHandler.addDialogStep(type.equals("sd"), group,
+					position, nextType.equals("sd"), nextGroup);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all the steps added with
+	 * {@link #addDialogStep(String, int, int, String, int)}.
+	 */
+	public void clearDialog() {
+
+		for (Module module : modules) {
+			module.commHandler.clearDialog();
+		}
+	}
+
+	private static boolean isRecogType(String type) {
+
+		return "sd".equals(type) || "si".equals(type);
 	}
 
 	/**
@@ -232,7 +1155,18 @@ public class EasyVR extends Driver {
 	 */
 	public boolean playPhoneTone(int tone, int duration) {
 
-		return commHandler.commandPlayDTMF(tone, duration);
+		return await(commHandler.commandPlayDTMF(tone, duration), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #playPhoneTone(int, int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> playPhoneToneAsync(int tone,
+			int duration) {
+
+		return async(commHandler.commandPlayDTMF(tone, duration));
 	}
 
 	/**
@@ -248,7 +1182,17 @@ public class EasyVR extends Driver {
 	 */
 	public boolean playSound(int index, int volume) {
 
-		return commHandler.commandPlaySX(index, volume);
+		return await(commHandler.commandPlaySX(index, volume), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #playSound(int, int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> playSoundAsync(int index, int volume) {
+
+		return async(commHandler.commandPlaySX(index, volume));
 	}
 
 	/**
@@ -262,7 +1206,18 @@ public class EasyVR extends Driver {
 	 */
 	public boolean removeCommand(int group, int position) {
 
-		return commHandler.commandRemoveSD(group, position);
+		return await(commHandler.commandRemoveSD(group, position), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #removeCommand(int, int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> removeCommandAsync(int group,
+			int position) {
+
+		return async(commHandler.commandRemoveSD(group, position));
 	}
 
 	/**
@@ -275,7 +1230,17 @@ public class EasyVR extends Driver {
 	 */
 	public boolean setLanguage(int language) {
 
-		return commHandler.commandLanguageSI(language);
+		return await(broadcast(h -> h.commandLanguageSI(language)), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #setLanguage(int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> setLanguageAsync(int language) {
+
+		return async(broadcast(h -> h.commandLanguageSI(language)));
 	}
 
 	/**
@@ -290,7 +1255,17 @@ public class EasyVR extends Driver {
 	 */
 	public boolean setLevel(int level) {
 
-		return commHandler.commandLevelSD(level);
+		return await(broadcast(h -> h.commandLevelSD(level)), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #setLevel(int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> setLevelAsync(int level) {
+
+		return async(broadcast(h -> h.commandLevelSD(level)));
 	}
 
 	/**
@@ -306,7 +1281,17 @@ public class EasyVR extends Driver {
 	 */
 	public boolean setKnob(int level) {
 
-		return commHandler.commandLevelSI(level);
+		return await(broadcast(h -> h.commandLevelSI(level)), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #setKnob(int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> setKnobAsync(int level) {
+
+		return async(broadcast(h -> h.commandLevelSI(level)));
 	}
 
 	/**
@@ -319,7 +1304,47 @@ public class EasyVR extends Driver {
 	 */
 	public boolean setTimeout(int seconds) {
 
-		return commHandler.commandTimeout(seconds);
+		return await(broadcast(h -> h.commandTimeout(seconds)), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #setTimeout(int)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> setTimeoutAsync(int seconds) {
+
+		return async(broadcast(h -> h.commandTimeout(seconds)));
+	}
+
+	/**
+	 * Applies a settings profile. All the settings of the profile are sent in
+	 * a single batch that no other command can interleave, and only the ones
+	 * that differ from the settings currently applied go to the module.
+	 * <p>
+	 * The batch is not atomic: if a setting fails, the other ones are still
+	 * sent and the settings already applied are not rolled back, so the
+	 * module may be left with part of the profile applied.
+	 * 
+	 * @param profile
+	 *            the settings profile
+	 * @return {@code true} if every setting was applied, {@code false} if at
+	 *         least one failed
+	 */
+	public boolean applySettings(SettingsProfile profile) {
+
+		return await(broadcast(h -> h.commandSettings(profile)), false);
+	}
+
+	/**
+	 * Asynchronous version of {@link #applySettings(SettingsProfile)}.
+	 * 
+	 * @return a future completed with {@code true} if successful
+	 */
+	public CompletableFuture<Boolean> applySettingsAsync(
+			SettingsProfile profile) {
+
+		return async(broadcast(h -> h.commandSettings(profile)));
 	}
 
 	/**
@@ -329,10 +1354,51 @@ public class EasyVR extends Driver {
 	 *            the group index (0 = trigger, 1-15 = generic, 16 = password)
 	 * @param position
 	 *            the command position (0-31)
-	 * @return {@code true} if successful
+	 * @return "trained", "similar_to_sd n" or "similar_to_si n" if the
+	 *         command is similar to the custom command or built-in word at
+	 *         position n, "error n" in case of training errors, or null in
+	 *         case of communication errors
 	 */
 	public String trainCommand(int group, int position) {
 
-		return commHandler.commandTrainSD(group, position);
+		return Objects.toString(train(group, position), null);
+	}
+
+	/**
+	 * Asynchronous version of {@link #trainCommand(int, int)}.
+	 * 
+	 * @return a future completed with the same value returned by
+	 *         {@link #trainCommand(int, int)}
+	 */
+	public CompletableFuture<String> trainCommandAsync(int group,
+			int position) {
+
+		return async(commHandler.commandTrainSD(group, position),
+				result -> Objects.toString(result, null));
+	}
+
+	/**
+	 * Starts training of a custom command.
+	 * 
+	 * @param group
+	 *            the group index (0 = trigger, 1-15 = generic, 16 = password)
+	 * @param position
+	 *            the command position (0-31)
+	 * @return the training result, or null in case of communication errors
+	 */
+	public TrainResult train(int group, int position) {
+
+		return await(commHandler.commandTrainSD(group, position), null);
+	}
+
+	/**
+	 * Asynchronous version of {@link #train(int, int)}.
+	 * 
+	 * @return a future completed with the same value returned by
+	 *         {@link #train(int, int)}
+	 */
+	public CompletableFuture<TrainResult> trainAsync(int group, int position) {
+
+		return async(commHandler.commandTrainSD(group, position));
 	}
 }
@@ -0,0 +1,29 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+/**
+ * JMX view of the metrics of an {@link EasyVR} driver instance, registered
+ * as {@code cc.sferalabs.sfera.drivers.easyvr:type=EasyVR,name=<driver id>}.
+ */
+public interface EasyVRMetricsMXBean {
+
+	/**
+	 * @return the metrics of each command type
+	 */
+	CommandStats[] getCommandStats();
+
+	/**
+	 * @return the number of recognition events waiting to be delivered
+	 */
+	int getEventQueueDepth();
+
+	/**
+	 * @return the number of recognition events dropped or coalesced because
+	 *         the event queue was full
+	 */
+	long getDroppedEventCount();
+
+	/**
+	 * Resets the command metrics.
+	 */
+	void resetCommandStats();
+}
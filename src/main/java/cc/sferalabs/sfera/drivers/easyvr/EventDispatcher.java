@@ -0,0 +1,173 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+import cc.sferalabs.sfera.events.Bus;
+import cc.sferalabs.sfera.events.Event;
+
+/**
+ * Bounded queue of events delivered to the {@link Bus} by a dedicated
+ * thread, so that the serial listener never runs subscriber code. When the
+ * queue is full the {@link Policy} decides what to do with a new event.
+ */
+class EventDispatcher {
+
+	/**
+	 * What to do when an event is posted and the queue is full.
+	 */
+	enum Policy {
+		/**
+		 * Wait for the delivery thread to make room. A slow subscriber then
+		 * stalls the serial listener, so this must be chosen explicitly
+		 */
+		BLOCK,
+		/** Discard the oldest queued event */
+		DROP_OLDEST,
+		/**
+		 * Replace a queued event with the same ID, if any, otherwise discard
+		 * the oldest queued event
+		 */
+		COALESCE
+	}
+
+	/** The policy used when none is configured, never blocking the poster */
+	static final Policy DEFAULT_POLICY = Policy.DROP_OLDEST;
+
+	private final Policy policy;
+	private final Logger logger;
+	private final Consumer<Event> subscribers;
+	private final Event[] queue;
+	private int head = 0;
+	private int size = 0;
+	private long dropped = 0;
+	private boolean running = true;
+	private final Thread thread;
+
+	/**
+	 * Creates a dispatcher and starts its delivery thread.
+	 *
+	 * @param capacity
+	 *            the maximum number of queued events
+	 * @param policy
+	 *            the overflow policy
+	 * @param logger
+	 *            the logger of the subscriber errors
+	 */
+	EventDispatcher(int capacity, Policy policy, Logger logger) {
+		this(capacity, policy, logger, Bus::post);
+	}
+
+	/**
+	 * Creates a dispatcher delivering the events to the specified consumer
+	 * instead of the {@link Bus}, and starts its delivery thread.
+	 *
+	 * @param capacity
+	 *            the maximum number of queued events
+	 * @param policy
+	 *            the overflow policy
+	 * @param logger
+	 *            the logger of the subscriber errors
+	 * @param subscribers
+	 *            the consumer of the events
+	 */
+	EventDispatcher(int capacity, Policy policy, Logger logger,
+			Consumer<Event> subscribers) {
+		this.queue = new Event[Math.max(1, capacity)];
+		this.policy = policy;
+		this.logger = logger;
+		this.subscribers = subscribers;
+		this.thread = new Thread(this::deliver, "EasyVR events");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues an event for delivery.
+	 *
+	 * @param event
+	 *            the event
+	 * @throws InterruptedException
+	 *             if interrupted while waiting with the {@link Policy#BLOCK}
+	 *             policy
+	 */
+	synchronized void post(Event event) throws InterruptedException {
+		if (size == queue.length && policy == Policy.COALESCE) {
+			String id = event.getId();
+			for (int i = 0; i < size; i++) {
+				int slot = (head + i) % queue.length;
+				if (queue[slot].getId().equals(id)) {
+					queue[slot] = event;
+					dropped++;
+					return;
+				}
+			}
+		}
+		while (size == queue.length) {
+			if (policy == Policy.BLOCK && running) {
+				wait();
+			} else {
+				queue[head] = null;
+				head = (head + 1) % queue.length;
+				size--;
+				dropped++;
+			}
+		}
+		queue[(head + size) % queue.length] = event;
+		size++;
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of events waiting for delivery
+	 */
+	synchronized int getQueueDepth() {
+		return size;
+	}
+
+	/**
+	 * @return the number of events discarded or replaced because the queue
+	 *         was full
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Stops the delivery thread. Events still queued are discarded.
+	 */
+	synchronized void close() {
+		running = false;
+		notifyAll();
+	}
+
+	private void deliver() {
+		while (true) {
+			Event event;
+			synchronized (this) {
+				while (running && size == 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!running) {
+					return;
+				}
+				event = queue[head];
+				queue[head] = null;
+				head = (head + 1) % queue.length;
+				size--;
+				notifyAll();
+			}
+			try {
+				subscribers.accept(event);
+			} catch (RuntimeException e) {
+				// a failing subscriber must not stop delivery
+				logger.error("Error delivering event {}", event.getId(), e);
+			}
+		}
+	}
+}
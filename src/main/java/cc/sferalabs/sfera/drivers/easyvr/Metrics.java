@@ -0,0 +1,39 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link CommandMetrics} of each command type, shared by all the
+ * communication handlers of a driver, across reconnections.
+ */
+class Metrics {
+
+	private final ConcurrentMap<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+
+	/**
+	 * @param name
+	 *            the command type
+	 * @return the metrics of the command type, created on first use
+	 */
+	CommandMetrics get(String name) {
+		CommandMetrics m = commands.get(name);
+		return (m != null) ? m : commands.computeIfAbsent(name,
+				CommandMetrics::new);
+	}
+
+	/**
+	 * @return the metrics of each command type, sorted by name
+	 */
+	CommandStats[] snapshot() {
+		return commands.values().stream().map(CommandMetrics::snapshot)
+				.sorted((a, b) -> a.getName().compareTo(b.getName()))
+				.toArray(CommandStats[]::new);
+	}
+
+	void reset() {
+		for (CommandMetrics m : commands.values()) {
+			m.reset();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the EasyVR serial protocol. Arguments are sent as printable
+ * characters offset from {@code 'A'}; labels are sent as upper case letters
+ * and symbols, with each digit escaped as {@code '^'} followed by its value
+ * as an argument. All the methods work on primitives and caller-provided
+ * buffers, so that nothing is allocated on the I/O paths.
+ */
+final class Protocol {
+
+	static final byte ARG_ZERO = 'A';
+	static final byte LABEL_DIGIT = '^';
+	/** Maximum length of an encoded label */
+	static final int MAX_LABEL_LENGTH = 31;
+
+	/** Argument value of every received byte */
+	private static final int[] ARG = new int[256];
+
+	/** Marks the digits in {@link #LABEL_CHAR} */
+	private static final byte DIGIT = 1;
+
+	/**
+	 * Encoded form of every label character below 128: the character itself,
+	 * {@link #DIGIT} for digits, or 0 if the character is dropped
+	 */
+	private static final byte[] LABEL_CHAR = new byte[128];
+
+	static {
+		for (int i = 0; i < ARG.length; i++) {
+			ARG[i] = (byte) i - ARG_ZERO;
+		}
+		for (int c = 'A'; c <= 0x60; c++) {
+			LABEL_CHAR[c] = (byte) c;
+		}
+		for (int c = '0'; c <= '9'; c++) {
+			LABEL_CHAR[c] = DIGIT;
+		}
+	}
+
+	private Protocol() {
+	}
+
+	/**
+	 * @param b
+	 *            a received argument byte
+	 * @return the argument value
+	 */
+	static int decodeArg(byte b) {
+		return ARG[b & 0xFF];
+	}
+
+	/**
+	 * @param i
+	 *            an argument value
+	 * @return the argument byte
+	 */
+	static byte encodeArg(int i) {
+		return (byte) (i + ARG_ZERO);
+	}
+
+	/**
+	 * @param label
+	 *            the label
+	 * @return the length of the encoded form of the label
+	 */
+	static int labelLength(CharSequence label) {
+		int len = 0;
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c < LABEL_CHAR.length && LABEL_CHAR[c] != 0) {
+				len += (LABEL_CHAR[c] == DIGIT) ? 2 : 1;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Writes the encoded form of a label to a buffer. Characters that cannot
+	 * be part of a label are dropped.
+	 *
+	 * @param label
+	 *            the label
+	 * @param out
+	 *            the buffer to write to
+	 * @return the number of bytes written
+	 */
+	static int encodeLabel(CharSequence label, ByteBuffer out) {
+		int start = out.position();
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c >= LABEL_CHAR.length) {
+				continue;
+			}
+			byte e = LABEL_CHAR[c];
+			if (e == DIGIT) {
+				out.put(LABEL_DIGIT).put(encodeArg(c - '0'));
+			} else if (e != 0) {
+				out.put(e);
+			}
+		}
+		return out.position() - start;
+	}
+
+	/**
+	 * Decodes a label received from the module. An escaped value other than
+	 * a digit is written as a decimal number.
+	 *
+	 * @param data
+	 *            the buffer holding the encoded label
+	 * @param offset
+	 *            the offset of the label in {@code data}
+	 * @param length
+	 *            the length of the encoded label
+	 * @return the label
+	 */
+	static String decodeLabel(byte[] data, int offset, int length) {
+		// an escape of two bytes decodes to at most four characters, e.g.
+		// "-193"
+		char[] chars = new char[2 * length];
+		int n = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			byte b = data[i];
+			if (b == LABEL_DIGIT && i + 1 < end) {
+				int d = decodeArg(data[++i]);
+				if (d < 0 || d >= 100) {
+					String s = Integer.toString(d);
+					s.getChars(0, s.length(), chars, n);
+					n += s.length();
+					continue;
+				}
+				if (d >= 10) {
+					chars[n++] = (char) ('0' + d / 10);
+				}
+				chars[n++] = (char) ('0' + d % 10);
+			} else {
+				chars[n++] = (char) (b & 0xFF);
+			}
+		}
+		return new String(chars, 0, n);
+	}
+
+	/**
+	 * Returns a label as it will be stored by the module, i.e. with the
+	 * characters that cannot be part of a label dropped.
+	 *
+	 * @param label
+	 *            the label
+	 * @return the normalized label
+	 */
+	static String normalizeLabel(String label) {
+		ByteBuffer buf = ByteBuffer.allocate(2 * label.length());
+		int n = encodeLabel(label, buf);
+		return decodeLabel(buf.array(), 0, n);
+	}
+}
@@ -0,0 +1,202 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cc.sferalabs.sfera.io.comm.CommPort;
+import cc.sferalabs.sfera.io.comm.CommPortException;
+
+/**
+ * Provisions a batch of EasyVR 3 modules in parallel.
+ * <p>
+ * Each module, attached to its own serial port, receives the same settings
+ * and the same custom command table, read from a snapshot exported with
+ * {@link EasyVR#exportCommands(String)}. Ports are processed by a bounded
+ * pool of workers and a {@link Report} is produced for each of them.
+ */
+public class Provisioner {
+
+	private static final int HANDSHAKE_TIMEOUT = 10000;
+	private static final Logger logger = LoggerFactory
+			.getLogger(Provisioner.class);
+
+	/**
+	 * The outcome of the provisioning of a single port.
+	 */
+	public static class Report {
+
+		private final String port;
+		private final boolean success;
+		private final String error;
+		private final long durationMillis;
+
+		Report(String port, boolean success, String error,
+				long durationMillis) {
+			this.port = port;
+			this.success = success;
+			this.error = error;
+			this.durationMillis = durationMillis;
+		}
+
+		/**
+		 * @return the serial port name
+		 */
+		public String getPort() {
+			return port;
+		}
+
+		/**
+		 * @return {@code true} if the module was provisioned successfully
+		 */
+		public boolean isSuccess() {
+			return success;
+		}
+
+		/**
+		 * @return the failure description, or {@code null} if successful
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * @return the time spent on the port, in milliseconds
+		 */
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		@Override
+		public String toString() {
+			return port + " " + (success ? "OK" : "FAILED (" + error + ")")
+					+ " " + durationMillis + " ms";
+		}
+	}
+
+	private final CommandInfo[][] commands;
+	private final SettingsProfile settings;
+	private final int workers;
+	private final int baudRate;
+
+	/**
+	 * 
+	 * @param snapshot
+	 *            the command table snapshot to push to each module
+	 * @param settings
+	 *            the settings to apply to each module
+	 * @param workers
+	 *            the maximum number of ports provisioned concurrently
+	 * @param baudRate
+	 *            the maximum baud rate to negotiate with each module
+	 * @throws IOException
+	 *             if the snapshot cannot be read
+	 */
+	public Provisioner(Path snapshot, SettingsProfile settings, int workers,
+			int baudRate) throws IOException {
+		this.commands = CommandTableSnapshot.read(snapshot);
+		this.settings = new SettingsProfile(settings);
+		this.workers = workers;
+		this.baudRate = baudRate;
+	}
+
+	/**
+	 * Provisions the modules attached to the specified ports.
+	 * 
+	 * @param ports
+	 *            the serial port names
+	 * @return the report of each port, in the same order as {@code ports}
+	 * @throws InterruptedException
+	 */
+	public List<Report> provision(List<String> ports)
+			throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(workers, ports.size())));
+		try {
+			List<Future<Report>> futures = new ArrayList<>();
+			for (String port : ports) {
+				futures.add(executor.submit(() -> provision(port)));
+			}
+			List<Report> reports = new ArrayList<>();
+			for (int i = 0; i < ports.size(); i++) {
+				try {
+					reports.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					reports.add(new Report(ports.get(i), false, e.getCause()
+							.toString(), 0));
+				}
+			}
+			return reports;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Provisions a single module.
+	 * 
+	 * @param portName
+	 *            the serial port name
+	 * @return the report
+	 */
+	private Report provision(String portName) {
+		long start = System.nanoTime();
+		String error = null;
+		CommPort commPort = null;
+		CommunicationHandler commHandler = null;
+		try {
+			commPort = CommPort.open(portName);
+			commPort.setParams(CommunicationHandler.DEFAULT_BAUD_RATE, 8, 1,
+					CommPort.PARITY_NONE, CommPort.FLOWCONTROL_NONE);
+			commHandler = new CommunicationHandler(null, commPort, logger);
+			commHandler.start();
+			if (!commHandler.commandHandshake(HANDSHAKE_TIMEOUT).get()) {
+				error = "handshake error";
+			} else if (!commHandler.commandTransmitDelay(0).get()) {
+				error = "transmit delay setting error";
+			} else if (commHandler.commandID().get() < 2) {
+				error = "device ID mismatch";
+			} else if (commHandler.commandBaudRate(baudRate).get() < 0) {
+				error = "baud rate negotiation error";
+			} else if (!commHandler.commandSettings(settings).get()) {
+				error = "settings error";
+			} else if (!commHandler.commandRestore(commands).get()) {
+				error = "command table restore error";
+			} else if (commHandler.commandBaudRate(
+					CommunicationHandler.DEFAULT_BAUD_RATE).get() < 0) {
+				error = "baud rate restore error";
+			}
+		} catch (CommPortException e) {
+			error = "serial port error: " + e.getMessage();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error = "interrupted";
+		} catch (Exception e) {
+			error = e.toString();
+		} finally {
+			if (commHandler != null) {
+				commHandler.close();
+			}
+			if (commPort != null) {
+				try {
+					commPort.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+		long duration = (System.nanoTime() - start) / 1000000L;
+		if (error != null) {
+			logger.error("Error provisioning EasyVR on {}: {}", portName,
+					error);
+		}
+		return new Report(portName, error == null, error, duration);
+	}
+}
@@ -0,0 +1,218 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.nio.ByteBuffer;
+
+import cc.sferalabs.sfera.io.comm.CommPort;
+import cc.sferalabs.sfera.io.comm.CommPortException;
+import cc.sferalabs.sfera.io.comm.CommPortListener;
+
+/**
+ * Comm port playing the module side of a {@link WireTrace} dump. The records
+ * are consumed in order: bytes written by the host are matched against the
+ * recorded TX bytes, and each recorded RX byte is delivered to the listener
+ * once all the preceding records have been consumed, after the same delay
+ * that preceded it in the trace.
+ */
+class ReplayCommPort extends CommPort {
+
+	private final ByteBuffer records;
+	private final int count;
+	private final boolean realTime;
+	private int cursor = 0;
+	private long lastNanos = System.nanoTime();
+	private long mismatches = 0;
+	private long skipped = 0;
+	private CommPortListener listener;
+	private Thread thread;
+	private volatile boolean closed = false;
+
+	/**
+	 *
+	 * @param records
+	 *            the records read with {@link WireTrace#read}
+	 * @param realTime
+	 *            whether to reproduce the recorded delays before RX bytes
+	 */
+	ReplayCommPort(ByteBuffer records, boolean realTime) {
+		this.records = records;
+		this.count = records.capacity() / WireTrace.RECORD_SIZE;
+		this.realTime = realTime;
+		// start from the first command frame
+		while (cursor < count
+				&& flags(cursor) != (WireTrace.TX | WireTrace.START)) {
+			cursor++;
+		}
+	}
+
+	long timestamp(int i) {
+		return records.getLong(i * WireTrace.RECORD_SIZE);
+	}
+
+	int flags(int i) {
+		return records.get(i * WireTrace.RECORD_SIZE + 8);
+	}
+
+	byte data(int i) {
+		return records.get(i * WireTrace.RECORD_SIZE + 9);
+	}
+
+	int count() {
+		return count;
+	}
+
+	/**
+	 * @return the index of the next record to consume
+	 */
+	synchronized int cursor() {
+		return cursor;
+	}
+
+	/**
+	 * @return the number of bytes written by the host that did not match the
+	 *         trace
+	 */
+	synchronized long getMismatches() {
+		return mismatches;
+	}
+
+	/**
+	 * @return the number of records skipped with {@link #skip()}
+	 */
+	synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Waits until the next record is a TX byte that the host has not written
+	 * yet, and no record has been consumed for {@code quietMillis}.
+	 *
+	 * @param quietMillis
+	 *            the time without progress after which the host is
+	 *            considered idle
+	 * @return the index of the next record, or -1 at the end of the trace
+	 * @throws InterruptedException
+	 */
+	synchronized int awaitHost(long quietMillis) throws InterruptedException {
+		while (true) {
+			if (cursor >= count) {
+				return -1;
+			}
+			long idle = (System.nanoTime() - lastNanos) / 1000000L;
+			if ((flags(cursor) & WireTrace.TX) != 0 && idle >= quietMillis) {
+				return cursor;
+			}
+			wait(Math.max(1, quietMillis - idle));
+		}
+	}
+
+	/**
+	 * Skips the next record, e.g. a command the host did not send again.
+	 */
+	synchronized void skip() {
+		if (cursor < count) {
+			cursor++;
+			skipped++;
+			advanced();
+		}
+	}
+
+	private void advanced() {
+		lastNanos = System.nanoTime();
+		notifyAll();
+	}
+
+	@Override
+	public void setParams(int baudRate, int dataBits, int stopBits,
+			int parity, int flowControl) throws CommPortException {
+	}
+
+	@Override
+	public synchronized void setListener(CommPortListener listener)
+			throws CommPortException {
+		this.listener = listener;
+		if (thread == null) {
+			thread = new Thread(this::deliver, "EasyVR replay");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	public synchronized void removeListener() throws CommPortException {
+		listener = null;
+	}
+
+	@Override
+	public void writeBytes(byte[] bytes) throws CommPortException {
+		synchronized (this) {
+			for (byte b : bytes) {
+				if (cursor < count && (flags(cursor) & WireTrace.TX) != 0) {
+					if (data(cursor) != b) {
+						mismatches++;
+					}
+					cursor++;
+				} else {
+					mismatches++;
+				}
+			}
+			advanced();
+		}
+	}
+
+	@Override
+	public int readBytes(byte[] b, int off, int len, int timeout)
+			throws CommPortException {
+		throw new CommPortException("Not supported");
+	}
+
+	@Override
+	public void clear() throws CommPortException {
+	}
+
+	@Override
+	public void close() throws CommPortException {
+		closed = true;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Delivers the RX records to the listener.
+	 */
+	private void deliver() {
+		byte[] one = new byte[1];
+		while (!closed) {
+			CommPortListener l;
+			synchronized (this) {
+				if (cursor >= count || (flags(cursor) & WireTrace.RX) == 0) {
+					try {
+						wait(100);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+				if (realTime && cursor > 0) {
+					long delay = (timestamp(cursor) - timestamp(cursor - 1))
+							- (System.nanoTime() - lastNanos);
+					if (delay > 0) {
+						try {
+							wait(delay / 1000000L, (int) (delay % 1000000L));
+						} catch (InterruptedException e) {
+							return;
+						}
+						continue;
+					}
+				}
+				one[0] = data(cursor);
+				cursor++;
+				advanced();
+				l = listener;
+			}
+			if (l != null) {
+				l.onRead(one);
+			}
+		}
+	}
+}
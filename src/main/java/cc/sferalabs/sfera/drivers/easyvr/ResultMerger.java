@@ -0,0 +1,152 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the recognition results of a pool of modules listening to the same
+ * groups into a single stream. The first result for a group opens a window:
+ * the first valid result received within the window is delivered right away
+ * and all the other results are dropped. If no module returns a valid result
+ * the first error is delivered once every module has reported or the window
+ * has expired. Results of the modules that had not reported when a window
+ * expired are dropped if they arrive within one more window duration.
+ */
+class ResultMerger {
+
+	/**
+	 * Receives the merged results.
+	 */
+	interface Sink {
+
+		void onResult(boolean speakerDependent, int group, int value,
+				String label);
+	}
+
+	private static class Window {
+
+		int reported = 0;
+		boolean delivered = false;
+		int error = 0;
+		long expiredNanos;
+	}
+
+	private final int poolSize;
+	private final long windowMillis;
+	private final ScheduledExecutorService timer;
+	private final Sink sink;
+	private final Window[] windows = new Window[2 * EasyVR.GROUPS];
+	/** The last expired window of each group, still awaiting late results */
+	private final Window[] expired = new Window[2 * EasyVR.GROUPS];
+
+	/**
+	 * 
+	 * @param poolSize
+	 *            the number of modules in the pool
+	 * @param windowMillis
+	 *            the window duration in milliseconds
+	 * @param timer
+	 *            the executor used to expire windows
+	 * @param sink
+	 *            the receiver of the merged results
+	 */
+	ResultMerger(int poolSize, long windowMillis,
+			ScheduledExecutorService timer, Sink sink) {
+		this.poolSize = poolSize;
+		this.windowMillis = windowMillis;
+		this.timer = timer;
+		this.sink = sink;
+	}
+
+	/**
+	 * Processes the result of one of the modules.
+	 * 
+	 * @param speakerDependent
+	 *            the recognition type
+	 * @param group
+	 *            the group index
+	 * @param value
+	 *            the recognized position or the negative error code
+	 * @param label
+	 *            the command label, if known
+	 */
+	void offer(boolean speakerDependent, int group, int value, String label) {
+		int key = (speakerDependent ? EasyVR.GROUPS : 0) + group;
+		boolean deliver = false;
+		boolean deliverError = false;
+		int error = 0;
+		synchronized (this) {
+			Window w = windows[key];
+			if (w == null && isLate(key)) {
+				return;
+			}
+			if (w == null) {
+				w = new Window();
+				windows[key] = w;
+				Window opened = w;
+				timer.schedule(() -> expire(speakerDependent, group, opened),
+						windowMillis, TimeUnit.MILLISECONDS);
+			}
+			w.reported++;
+			if (!w.delivered) {
+				if (value >= 0) {
+					w.delivered = true;
+					deliver = true;
+				} else if (w.reported == 1) {
+					w.error = value;
+				}
+			}
+			if (w.reported >= poolSize) {
+				windows[key] = null;
+				if (!w.delivered) {
+					w.delivered = true;
+					deliverError = true;
+					error = w.error;
+				}
+			}
+		}
+		if (deliver) {
+			sink.onResult(speakerDependent, group, value, label);
+		} else if (deliverError) {
+			sink.onResult(speakerDependent, group, error, null);
+		}
+	}
+
+	/**
+	 * Counts a result against the last expired window of a group, if some
+	 * module had not reported in it and the grace period is not over.
+	 * 
+	 * @return {@code true} if the result belongs to the expired window
+	 */
+	private boolean isLate(int key) {
+		Window w = expired[key];
+		if (w == null) {
+			return false;
+		}
+		long age = System.nanoTime() - w.expiredNanos;
+		if (w.reported < poolSize && age < windowMillis * 1000000L) {
+			w.reported++;
+			return true;
+		}
+		expired[key] = null;
+		return false;
+	}
+
+	private void expire(boolean speakerDependent, int group, Window w) {
+		int key = (speakerDependent ? EasyVR.GROUPS : 0) + group;
+		synchronized (this) {
+			if (windows[key] == w) {
+				windows[key] = null;
+				if (w.reported < poolSize) {
+					w.expiredNanos = System.nanoTime();
+					expired[key] = w;
+				}
+			}
+			if (w.delivered) {
+				return;
+			}
+			w.delivered = true;
+		}
+		sink.onResult(speakerDependent, group, w.error, null);
+	}
+}
@@ -0,0 +1,99 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+/**
+ * A set of module settings applied in a single batch by
+ * {@link EasyVR#applySettings(SettingsProfile)}. Settings that are not set are
+ * left unchanged, and settings already applied to the module are not sent
+ * again. The batch is not transactional: if a setting fails the following
+ * ones are still sent, and the ones that succeeded stay applied.
+ */
+public class SettingsProfile {
+
+	int level = -1;
+	int knob = -1;
+	int language = -1;
+	int timeout = -1;
+	int micDistance = -1;
+	int transmitDelay = -1;
+
+	public SettingsProfile() {
+	}
+
+	SettingsProfile(SettingsProfile other) {
+		this.level = other.level;
+		this.knob = other.knob;
+		this.language = other.language;
+		this.timeout = other.timeout;
+		this.micDistance = other.micDistance;
+		this.transmitDelay = other.transmitDelay;
+	}
+
+	/**
+	 * @param level
+	 *            the strictness level to use for recognition of
+	 *            speaker-dependent custom commands (1-5)
+	 * @return this profile
+	 * @see EasyVR#setLevel(int)
+	 */
+	public SettingsProfile setLevel(int level) {
+		this.level = level;
+		return this;
+	}
+
+	/**
+	 * @param level
+	 *            the confidence threshold to use for recognition of
+	 *            speaker-independent built-in words (0-4)
+	 * @return this profile
+	 * @see EasyVR#setKnob(int)
+	 */
+	public SettingsProfile setKnob(int level) {
+		this.knob = level;
+		return this;
+	}
+
+	/**
+	 * @param language
+	 *            the language to use for recognition of built-in words
+	 * @return this profile
+	 * @see EasyVR#setLanguage(int)
+	 */
+	public SettingsProfile setLanguage(int language) {
+		this.language = language;
+		return this;
+	}
+
+	/**
+	 * @param seconds
+	 *            the timeout to use for any recognition task (0-31)
+	 * @return this profile
+	 * @see EasyVR#setTimeout(int)
+	 */
+	public SettingsProfile setTimeout(int seconds) {
+		this.timeout = seconds;
+		return this;
+	}
+
+	/**
+	 * @param distance
+	 *            the operating distance of the microphone: 1 = headset; 2 =
+	 *            armlength (default); 3 = far microphone
+	 * @return this profile
+	 */
+	public SettingsProfile setMicDistance(int distance) {
+		this.micDistance = distance;
+		return this;
+	}
+
+	/**
+	 * @param time
+	 *            the delay the module waits before each reply byte (0-10 =
+	 *            0-10 ms, 11-13 = 20-40 ms, 14-16 = 100-300 ms, 17-20 =
+	 *            400-1000 ms)
+	 * @return this profile
+	 */
+	public SettingsProfile setTransmitDelay(int time) {
+		this.transmitDelay = time;
+		return this;
+	}
+}
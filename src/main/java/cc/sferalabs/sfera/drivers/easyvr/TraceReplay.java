@@ -0,0 +1,248 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static cc.sferalabs.sfera.drivers.easyvr.Protocol.decodeArg;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cc.sferalabs.sfera.io.comm.CommPortException;
+
+/**
+ * Offline analysis and replay of a wire trace dumped with
+ * {@link EasyVR#dumpTrace(String)}.
+ * <p>
+ * The analysis reports, for each command letter, the latency measured in
+ * the trace from the command frame to the first byte of the reply. The
+ * replay feeds the recorded module bytes, with their original timing, to a
+ * {@link CommunicationHandler} issuing the recorded commands, so that the
+ * handler state machine goes through the same exchange as in the field;
+ * bytes written by the handler that do not match the trace are reported.
+ * Only the command frames are issued: acknowledges are written by the
+ * handler itself while it reads the replies.
+ */
+public class TraceReplay {
+
+	/** Time without progress after which the handler is considered idle */
+	private static final int QUIET_TIME = 50;
+	/** Maximum time to wait for a replayed command */
+	private static final int COMMAND_TIMEOUT = 70000;
+	private static final Logger logger = LoggerFactory
+			.getLogger(TraceReplay.class);
+
+	private final ReplayCommPort port;
+	private final boolean realTime;
+
+	/**
+	 *
+	 * @param trace
+	 *            the trace dump
+	 * @param realTime
+	 *            whether to reproduce the recorded delays
+	 * @throws IOException
+	 *             if the trace cannot be read
+	 */
+	public TraceReplay(Path trace, boolean realTime) throws IOException {
+		ByteBuffer records = WireTrace.read(trace);
+		this.port = new ReplayCommPort(records, realTime);
+		this.realTime = realTime;
+	}
+
+	/**
+	 * Prints the latency of the commands in the trace, from the first byte
+	 * of each command frame to the first byte received afterwards.
+	 *
+	 * @param out
+	 *            the stream to print to
+	 */
+	public void analyze(PrintStream out) {
+		Map<Character, CommandMetrics> latencies = new TreeMap<>();
+		int frame = -1;
+		for (int i = 0; i < port.count(); i++) {
+			int flags = port.flags(i);
+			if (flags == (WireTrace.TX | WireTrace.START)) {
+				frame = i;
+			} else if ((flags & WireTrace.RX) != 0 && frame >= 0) {
+				char cmd = (char) port.data(frame);
+				latencies.computeIfAbsent(cmd,
+						c -> new CommandMetrics(String.valueOf(c))).record(
+						port.timestamp(i) - port.timestamp(frame), true);
+				frame = -1;
+			}
+		}
+		out.println("Recorded latencies:");
+		for (CommandMetrics m : latencies.values()) {
+			out.println("  " + m.snapshot());
+		}
+	}
+
+	/**
+	 * Replays the trace against a new communication handler.
+	 *
+	 * @param out
+	 *            the stream to print the outcome to
+	 * @return {@code true} if the handler wrote exactly the recorded bytes
+	 * @throws InterruptedException
+	 * @throws CommPortException
+	 */
+	public boolean replay(PrintStream out) throws InterruptedException,
+			CommPortException {
+		CommunicationHandler handler = new CommunicationHandler(null, port,
+				logger);
+		handler.start();
+		try {
+			int next;
+			while ((next = port.awaitHost(QUIET_TIME)) >= 0) {
+				CompletableFuture<?> command = issue(handler, next);
+				if (command == null) {
+					port.skip();
+					continue;
+				}
+				try {
+					command.get(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					command.cancel(false);
+				} catch (Exception e) {
+				}
+				if (port.cursor() == next) {
+					// the handler did not send the command, e.g. because
+					// the setting was already applied
+					port.skip();
+				}
+			}
+		} finally {
+			handler.close();
+			port.close();
+		}
+		out.println("Replayed " + port.count() + " records in "
+				+ (realTime ? "real time" : "fast mode") + ": "
+				+ port.getMismatches() + " mismatching bytes, "
+				+ port.getSkipped() + " records skipped");
+		for (CommandStats stats : handler.getMetrics().snapshot()) {
+			out.println("  " + stats);
+		}
+		return port.getMismatches() == 0 && port.getSkipped() == 0;
+	}
+
+	/**
+	 * Issues the handler command matching the frame recorded at an index.
+	 *
+	 * @return the command future, or {@code null} if the record is not the
+	 *         start of a known command frame
+	 */
+	private CompletableFuture<?> issue(CommunicationHandler handler, int i) {
+		if (port.flags(i) != (WireTrace.TX | WireTrace.START)) {
+			return null;
+		}
+		int len = 1;
+		// the bytes of a frame are written, and timestamped, together
+		while (i + len < port.count()
+				&& port.flags(i + len) == WireTrace.TX
+				&& port.timestamp(i + len) == port.timestamp(i)) {
+			len++;
+		}
+		byte[] f = new byte[len];
+		for (int j = 0; j < len; j++) {
+			f[j] = port.data(i + j);
+		}
+		boolean at = len > 1 && f[1] == '@';
+		switch (f[0]) {
+		case 'b':
+			return handler.commandBreak();
+		case 'x':
+			return handler.commandID();
+		case 'c':
+			return (len == 2) ? handler.commandCountSD(decodeArg(f[1]))
+					: null;
+		case 'p':
+			return (len == 3) ? handler.commandDumpSD(decodeArg(f[1]),
+					decodeArg(f[2])) : null;
+		case 'd':
+			return (len == 2) ? handler.commandRecogSD(decodeArg(f[1]))
+					: null;
+		case 'i':
+			return (len == 2) ? handler.commandRecogSI(decodeArg(f[1]))
+					: null;
+		case 'v':
+			return (len == 2) ? handler.commandLevelSD(decodeArg(f[1]))
+					: null;
+		case 'k':
+			if (at) {
+				return (len == 3) ? handler.commandMicDist(decodeArg(f[2]))
+						: null;
+			}
+			return (len == 2) ? handler.commandLevelSI(decodeArg(f[1]))
+					: null;
+		case 'l':
+			return (len == 2) ? handler.commandLanguageSI(decodeArg(f[1]))
+					: null;
+		case 'o':
+			return (len == 2) ? handler.commandTimeout(decodeArg(f[1]))
+					: null;
+		case 'y':
+			return (len == 2) ? handler.commandTransmitDelay(decodeArg(f[1]))
+					: null;
+		case 'w':
+			if (at) {
+				return (len == 4) ? handler.commandPlayDTMF(decodeArg(f[2]),
+						decodeArg(f[3])) : null;
+			}
+			return (len == 4) ? handler.commandPlaySX(32 * decodeArg(f[1])
+					+ decodeArg(f[2]), decodeArg(f[3])) : null;
+		case 'g':
+			return (len == 3) ? addCommand(handler, i + len, decodeArg(f[1]),
+					decodeArg(f[2])) : null;
+		case 'u':
+			return (len == 3) ? handler.commandRemoveSD(decodeArg(f[1]),
+					decodeArg(f[2])) : null;
+		case 'e':
+			return (len == 3) ? handler.commandEraseSD(decodeArg(f[1]),
+					decodeArg(f[2])) : null;
+		case 't':
+			return (len == 3) ? handler.commandTrainSD(decodeArg(f[1]),
+					decodeArg(f[2])) : null;
+		case 'r':
+			return (len == 2 && f[1] == 'R') ? handler.commandResetAll()
+					: null;
+		default:
+			// e.g. baud rate requests
+			return handler.commandRaw(f);
+		}
+	}
+
+	/**
+	 * Issues an add command, taking the label from the name frame that
+	 * follows the group frame in the trace.
+	 */
+	private CompletableFuture<?> addCommand(CommunicationHandler handler,
+			int from, int group, int position) {
+		for (int i = from; i < port.count(); i++) {
+			if (port.flags(i) != (WireTrace.TX | WireTrace.START)) {
+				continue;
+			}
+			if (port.data(i) != 'n' || i + 3 >= port.count()) {
+				break;
+			}
+			int len = decodeArg(port.data(i + 3));
+			if (len < 0 || i + 4 + len > port.count()) {
+				break;
+			}
+			byte[] label = new byte[len];
+			for (int j = 0; j < len; j++) {
+				label[j] = port.data(i + 4 + j);
+			}
+			return handler.commandAddSD(group, position,
+					Protocol.decodeLabel(label, 0, len));
+		}
+		return null;
+	}
+}
@@ -0,0 +1,95 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+/**
+ * Immutable outcome of the training of a custom command.
+ *
+ * @see EasyVR#train(int, int)
+ */
+public class TrainResult {
+
+	public enum Outcome {
+		/** The command was trained */
+		TRAINED,
+		/**
+		 * The command is similar to the custom command at
+		 * {@link TrainResult#getValue()}
+		 */
+		SIMILAR_TO_SD,
+		/**
+		 * The command is similar to the built-in word at
+		 * {@link TrainResult#getValue()}
+		 */
+		SIMILAR_TO_SI,
+		/** Training failed with the error code {@link TrainResult#getValue()} */
+		ERROR
+	}
+
+	static final TrainResult TRAINED = new TrainResult(Outcome.TRAINED, 0);
+
+	private final Outcome outcome;
+	private final int value;
+
+	/**
+	 *
+	 * @param outcome
+	 *            the outcome
+	 * @param value
+	 *            the position of the similar command or word, or the error
+	 *            code, depending on the outcome
+	 */
+	public TrainResult(Outcome outcome, int value) {
+		this.outcome = outcome;
+		this.value = value;
+	}
+
+	/**
+	 * @return the outcome
+	 */
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * @return the position of the similar command or word, or the error code,
+	 *         depending on the outcome; 0 if trained
+	 */
+	public int getValue() {
+		return value;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof TrainResult)) {
+			return false;
+		}
+		TrainResult other = (TrainResult) obj;
+		return outcome == other.outcome && value == other.value;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * outcome.hashCode() + value;
+	}
+
+	/**
+	 * Returns the same representation returned by
+	 * {@link EasyVR#trainCommand(int, int)}: "trained", "similar_to_sd n",
+	 * "similar_to_si n" or "error n".
+	 */
+	@Override
+	public String toString() {
+		switch (outcome) {
+		case TRAINED:
+			return "trained";
+		case SIMILAR_TO_SD:
+			return "similar_to_sd " + value;
+		case SIMILAR_TO_SI:
+			return "similar_to_si " + value;
+		default:
+			return "error " + value;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size recorder of the bytes exchanged with a module. Every byte is
+ * stored with its {@link System#nanoTime()} timestamp and direction in an
+ * off-heap ring buffer, overwriting the oldest records when full. Writers
+ * claim their slots with a single atomic increment per call and never lock
+ * or allocate.
+ * <p>
+ * A trace dump starts with the magic bytes {@code EVRW}, a version byte and
+ * the number of records, followed by the records, oldest first: timestamp
+ * (8 bytes), flags (1 byte) and data (1 byte).
+ *
+ * @see TraceReplay
+ */
+class WireTrace {
+
+	/** Byte sent to the module */
+	static final int TX = 1;
+	/** Byte received from the module */
+	static final int RX = 2;
+	/** First byte of a command frame, as opposed to an acknowledge */
+	static final int START = 4;
+
+	static final int RECORD_SIZE = 10;
+
+	private static final byte[] MAGIC = { 'E', 'V', 'R', 'W' };
+	private static final int VERSION = 2;
+
+	private final ByteBuffer ring;
+	private final int capacity;
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 *
+	 * @param capacity
+	 *            the number of bytes kept
+	 */
+	WireTrace(int capacity) {
+		this.capacity = capacity;
+		this.ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+	}
+
+	/**
+	 * Records the bytes of a read or write.
+	 *
+	 * @param flags
+	 *            {@link #TX} or {@link #RX}, plus {@link #START} if the bytes
+	 *            are a command frame. {@link #START} is only set on the
+	 *            first byte
+	 * @param bytes
+	 *            the bytes
+	 */
+	void record(int flags, byte[] bytes) {
+		long now = System.nanoTime();
+		long seq = next.getAndAdd(bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			int pos = (int) ((seq + i) % capacity) * RECORD_SIZE;
+			ring.putLong(pos, now);
+			ring.put(pos + 8, (byte) ((i == 0) ? flags : flags & ~START));
+			ring.put(pos + 9, bytes[i]);
+		}
+	}
+
+	/**
+	 * Writes the records currently in the ring to a file. Bytes recorded
+	 * while dumping may overwrite the oldest records being written.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 */
+	void dump(Path file) throws IOException {
+		long end = next.get();
+		long start = Math.max(0, end - capacity);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt((int) (end - start));
+			for (long seq = start; seq < end; seq++) {
+				int pos = (int) (seq % capacity) * RECORD_SIZE;
+				out.writeLong(ring.getLong(pos));
+				out.writeByte(ring.get(pos + 8));
+				out.writeByte(ring.get(pos + 9));
+			}
+		}
+	}
+
+	/**
+	 * Reads a trace dump.
+	 *
+	 * @param file
+	 *            the file to read
+	 * @return the records, in a heap buffer positioned at the first record
+	 * @throws IOException
+	 *             if the file cannot be read or is not a valid trace dump
+	 */
+	static ByteBuffer read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (magic[i] != MAGIC[i]) {
+					throw new IOException("Not a wire trace");
+				}
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported trace version " + version);
+			}
+			int count = in.readInt();
+			if (count < 0) {
+				throw new IOException("Invalid record count " + count);
+			}
+			byte[] records = new byte[count * RECORD_SIZE];
+			in.readFully(records);
+			return ByteBuffer.wrap(records);
+		}
+	}
+}
@@ -7,6 +7,8 @@ import cc.sferalabs.sfera.events.NumberEvent;
 /**
  * Event triggered after speaker-dependent custom recognition command
  * {@link EasyVR#recognizeCommand(int)}.
+ * The label of the recognized command is available through
+ * {@link #getLabel()}.
  * 
  * @sfera.event.id recog.sd(group) the group index (0 = trigger, 1-15 = generic,
  *                 16 = password)
@@ -21,7 +23,47 @@ import cc.sferalabs.sfera.events.NumberEvent;
  */
 public class RecogSDEvent extends NumberEvent implements EasyVREvent {
 
+	/** IDs of the events of each group */
+	private static final String[] IDS = new String[17];
+
+	static {
+		for (int i = 0; i < IDS.length; i++) {
+			IDS[i] = "recog.sd(" + i + ")";
+		}
+	}
+
+	private final String label;
+
 	public RecogSDEvent(Node source, int index, Integer value) {
-		super(source, "recog.sd(" + index + ")", value);
+		this(source, index, value, null);
+	}
+
+	public RecogSDEvent(Node source, int index, Integer value, String label) {
+		super(source, id(index), value);
+		this.label = label;
+	}
+
+	/**
+	 * Creates an event from a primitive value. The value is boxed with
+	 * {@link Integer#valueOf(int)}, so positions and error codes, which are
+	 * within the range of its cache (-128 to 127), do not allocate.
+	 */
+	public RecogSDEvent(Node source, int index, int value, String label) {
+		this(source, index, Integer.valueOf(value), label);
+	}
+
+	private static String id(int index) {
+		return (index >= 0 && index < IDS.length) ? IDS[index] : "recog.sd("
+				+ index + ")";
+	}
+
+	/**
+	 * Returns the label of the recognized command.
+	 * 
+	 * @return the label of the recognized command, or {@code null} in case of
+	 *         recognition errors or if the label is not known to the driver
+	 */
+	public String getLabel() {
+		return label;
 	}
 }
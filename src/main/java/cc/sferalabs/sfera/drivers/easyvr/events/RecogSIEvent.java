@@ -8,7 +8,7 @@ import cc.sferalabs.sfera.events.NumberEvent;
  * Event triggered after speaker-independent word recognition command
  * {@link EasyVR#recognizeWord(int)}.
  * 
- * @sfera.event.id recog.sd(group)
+ * @sfera.event.id recog.si(group) the word set index
  * @sfera.event.value positive integer corresponding to the recognized word
  *                    position or negative integer corresponding to the
  *                    recognition error
@@ -20,7 +20,30 @@ import cc.sferalabs.sfera.events.NumberEvent;
  */
 public class RecogSIEvent extends NumberEvent implements EasyVREvent {
 
+	/** IDs of the events of each group */
+	private static final String[] IDS = new String[17];
+
+	static {
+		for (int i = 0; i < IDS.length; i++) {
+			IDS[i] = "recog.si(" + i + ")";
+		}
+	}
+
 	public RecogSIEvent(Node source, int index, Integer value) {
-		super(source, "recog.si(" + index + ")", value);
+		super(source, id(index), value);
+	}
+
+	/**
+	 * Creates an event from a primitive value. The value is boxed with
+	 * {@link Integer#valueOf(int)}, so positions and error codes, which are
+	 * within the range of its cache (-128 to 127), do not allocate.
+	 */
+	public RecogSIEvent(Node source, int index, int value) {
+		this(source, index, Integer.valueOf(value));
+	}
+
+	private static String id(int index) {
+		return (index >= 0 && index < IDS.length) ? IDS[index] : "recog.si("
+				+ index + ")";
 	}
 }
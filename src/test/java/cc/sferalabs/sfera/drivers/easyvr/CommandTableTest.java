@@ -0,0 +1,80 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class CommandTableTest {
+
+	private static CommandTable table() {
+		CommandTable table = new CommandTable();
+		table.reset();
+		table.load(1, new CommandInfo[] { new CommandInfo(2, 0, 0, "ON"),
+				new CommandInfo(0, CommandInfo.CONFLICT_SD, 0, "OFF") });
+		return table;
+	}
+
+	@Test
+	public void mirrorsEdits() {
+		CommandTable table = table();
+		table.insert(1, 1, new CommandInfo(0, 0, 0, "DIM"));
+		assertEquals(3, table.count(1));
+		assertEquals("DIM", table.get(1, 1).getLabel());
+		assertEquals(1 * EasyVR.POSITIONS + 2, table.find("OFF"));
+		table.remove(1, 0);
+		assertEquals("DIM", table.get(1, 0).getLabel());
+		assertEquals(-1, table.find("ON"));
+		table.invalidate(1);
+		assertFalse(table.isLoaded(1));
+		assertNull(table.snapshot());
+	}
+
+	@Test
+	public void outOfRangeEditInvalidatesGroup() {
+		CommandTable table = table();
+		table.insert(1, 5, new CommandInfo(0, 0, 0, "DIM"));
+		assertFalse(table.isLoaded(1));
+		assertTrue(table.isLoaded(2));
+	}
+
+	@Test
+	public void snapshotRoundTrip() throws Exception {
+		CommandInfo[][] groups = table().snapshot();
+		Path file = Files.createTempFile("easyvr", ".evrt");
+		try {
+			CommandTableSnapshot.write(file, groups);
+			CommandInfo[][] read = CommandTableSnapshot.read(file);
+			assertEquals(EasyVR.GROUPS, read.length);
+			for (int g = 0; g < EasyVR.GROUPS; g++) {
+				assertArrayEquals(groups[g], read[g]);
+			}
+			assertEquals(2, read[1][0].getTrainCount());
+			assertEquals(CommandInfo.CONFLICT_SD, read[1][1]
+					.getConflictFlags());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void entriesAreValues() {
+		CommandInfo info = new CommandInfo(2, CommandInfo.CONFLICT_SD, 3,
+				"ON");
+		assertEquals(info, CommandInfo.decode(info.getFlags(), 3, "ON"));
+		assertEquals(info.hashCode(), new CommandInfo(2,
+				CommandInfo.CONFLICT_SD, 3, "ON").hashCode());
+		assertNotEquals(info, new CommandInfo(2, 0, 3, "ON"));
+		assertEquals(new TrainResult(TrainResult.Outcome.TRAINED, 0),
+				TrainResult.TRAINED);
+		assertNotEquals(new TrainResult(TrainResult.Outcome.ERROR, 1),
+				new TrainResult(TrainResult.Outcome.ERROR, 2));
+	}
+}
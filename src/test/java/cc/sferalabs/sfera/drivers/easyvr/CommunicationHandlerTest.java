@@ -0,0 +1,220 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class CommunicationHandlerTest {
+
+	/**
+	 * Driver collecting the recognition results, as "sd group value".
+	 */
+	static class RecordingDriver extends EasyVR {
+
+		final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+
+		RecordingDriver() {
+			super("test");
+		}
+
+		@Override
+		void onRecognition(boolean speakerDependent, int group, int value,
+				String label) {
+			results.add(speakerDependent + " " + group + " " + value);
+		}
+
+		String next() throws InterruptedException {
+			return results.poll(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private EasyVREmulator emulator;
+	private RecordingDriver driver;
+	private CommunicationHandler handler;
+
+	@Before
+	public void setUp() throws Exception {
+		emulator = new EasyVREmulator(2, false);
+		driver = new RecordingDriver();
+		handler = new CommunicationHandler(driver, emulator, LoggerFactory
+				.getLogger(CommunicationHandlerTest.class));
+		handler.start();
+		assertTrue(handler.commandHandshake(5000).get());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		handler.close();
+		emulator.close();
+	}
+
+	@Test
+	public void editsCommandTable() throws Exception {
+		assertTrue(handler.commandAddSD(1, 0, "LIGHTS_ON").get());
+		assertEquals(1, (int) handler.commandCountSD(1).get());
+		assertEquals(TrainResult.TRAINED, handler.commandTrainSD(1, 0).get());
+		CommandInfo info = handler.commandDumpSD(1, 0).get();
+		assertEquals("LIGHTS_ON", info.getLabel());
+		assertEquals(1, info.getTrainCount());
+		assertTrue(handler.commandRemoveSD(1, 0).get());
+		assertEquals(0, (int) handler.commandCountSD(1).get());
+	}
+
+	@Test
+	public void breakPreemptsCommands() throws Exception {
+		Thread load = new Thread(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					handler.commandID().get();
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+				}
+			}
+		});
+		load.start();
+		try {
+			for (int i = 0; i < 200; i++) {
+				assertTrue("break " + i, handler.commandBreak().get());
+				assertEquals("id after break " + i, 2, (int) handler
+						.commandID().get());
+			}
+		} finally {
+			load.interrupt();
+			load.join();
+		}
+	}
+
+	@Test
+	public void breakInterruptsRecognition() throws Exception {
+		assertTrue(handler.commandRecogSD(1).get());
+		assertTrue(handler.commandBreak().get());
+		emulator.scriptRecognition(3, 0);
+		assertTrue(handler.commandRecogSD(1).get());
+		assertEquals("true 1 3", driver.next());
+	}
+
+	@Test
+	public void continuousRecognitionIsRearmed() throws Exception {
+		handler.setContinuous(true, 1, true);
+		emulator.scriptRecognition(0, 10);
+		emulator.scriptRecognition(-0x11, 10);
+		emulator.scriptRecognition(2, 10);
+		assertTrue(handler.commandRecogSD(1).get());
+		assertEquals("true 1 0", driver.next());
+		assertEquals("true 1 -17", driver.next());
+		assertEquals("true 1 2", driver.next());
+		assertTrue(handler.commandBreak().get());
+		assertNull(driver.results.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void dialogChainsSteps() throws Exception {
+		handler.addDialogStep(true, 1, DialogGraph.ANY_POSITION, false, 2);
+		emulator.scriptRecognition(4, 10);
+		emulator.scriptRecognition(5, 10);
+		assertTrue(handler.commandRecogSD(1).get());
+		assertEquals("false 2 5", driver.next());
+		assertNull(driver.results.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void pingKeepsRecognitionArmed() throws Exception {
+		assertTrue(handler.commandRecogSD(1).get());
+		// consumed when the ping re-arms the recognition
+		emulator.scriptRecognition(3, 100);
+		assertTrue(handler.commandPing().get());
+		assertTrue(handler.isListening());
+		assertEquals("true 1 3", driver.next());
+	}
+
+	@Test
+	public void resumeRearmsRootGroup() throws Exception {
+		handler.addDialogStep(true, 1, DialogGraph.ANY_POSITION, false, 2);
+		emulator.scriptRecognition(4, 10);
+		assertTrue(handler.commandRecogSD(1).get());
+		Thread.sleep(200);
+		assertTrue(handler.isListening());
+		handler.close();
+
+		CommunicationHandler previous = handler;
+		handler = new CommunicationHandler(driver, emulator, LoggerFactory
+				.getLogger(CommunicationHandlerTest.class));
+		handler.start();
+		emulator.scriptRecognition(3, 10);
+		assertTrue(handler.commandResume(previous).get());
+		assertEquals("true 1 3", driver.next());
+	}
+
+	@Test
+	public void recognitionTimeoutIsNotAProtocolError() throws Exception {
+		assertTrue(handler.commandTimeout(1).get());
+		assertTrue(handler.commandRecogSD(1).get());
+		assertEquals("true 1 -1", driver.next());
+		CommandStats recog = null;
+		for (CommandStats stats : handler.getMetrics().snapshot()) {
+			if (stats.getName().equals("recognitionSD")) {
+				recog = stats;
+			}
+		}
+		assertEquals(1, recog.getTimeouts());
+		assertEquals(0, recog.getProtocolErrors());
+	}
+
+	@Test
+	public void appliesSettingsProfile() throws Exception {
+		assertTrue(handler.commandSettings(new SettingsProfile().setLevel(3)
+				.setTimeout(7).setTransmitDelay(2)).get());
+		assertEquals(3, emulator.getLevel());
+		assertEquals(7, emulator.getTimeout());
+		assertEquals(2, emulator.getTransmitDelay());
+	}
+
+	@Test
+	public void rejectsLongLabels() throws Exception {
+		assertFalse(handler.commandAddSD(1, 0, "ROOM_12345678901234")
+				.get());
+		assertEquals(0, (int) handler.commandCountSD(1).get());
+		StringBuilder label = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			label.append('A');
+		}
+		assertFalse(handler.commandAddSD(1, 0, label.toString()).get());
+		assertTrue(handler.commandAddSD(1, 0, label.substring(0, 31)).get());
+		assertEquals(label.substring(0, 31), handler.commandDumpSD(1, 0)
+				.get().getLabel());
+	}
+
+	@Test
+	public void breakDoesNotWaitForLateAcks() throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			assertTrue(handler.commandRecogSD(1).get());
+			assertTrue(handler.commandBreak().get());
+		}
+		long millis = (System.nanoTime() - start) / 1000000L;
+		assertTrue("20 breaks took " + millis + " ms", millis < 500);
+	}
+
+	@Test
+	public void pingKeepsDialogStep() throws Exception {
+		handler.addDialogStep(true, 1, DialogGraph.ANY_POSITION, false, 2);
+		emulator.scriptRecognition(4, 10);
+		assertTrue(handler.commandRecogSD(1).get());
+		Thread.sleep(200);
+		// consumed when the ping re-arms the second step
+		emulator.scriptRecognition(5, 100);
+		assertTrue(handler.commandPing().get());
+		assertEquals("false 2 5", driver.next());
+	}
+}
@@ -0,0 +1,620 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static cc.sferalabs.sfera.drivers.easyvr.Protocol.decodeArg;
+import static cc.sferalabs.sfera.drivers.easyvr.Protocol.encodeArg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import cc.sferalabs.sfera.io.comm.CommPort;
+import cc.sferalabs.sfera.io.comm.CommPortException;
+import cc.sferalabs.sfera.io.comm.CommPortListener;
+
+/**
+ * In-process emulator of an EasyVR 3 module attached to a serial port.
+ * <p>
+ * The emulator implements the subset of the protocol used by the driver:
+ * custom command table, settings, baud rate switching, playback, training
+ * and recognition. Every reply byte after the first is only sent when the
+ * host acknowledges the previous one with a space, as the module does.
+ * Recognition results, training outcomes and playback durations are
+ * scripted through the public methods.
+ * <p>
+ * All the module logic runs on a single emulator thread. When byte timing is
+ * enabled every byte, in both directions, takes the time needed to transfer
+ * 10 bits at the current baud rate; bytes sent while host and module are at
+ * different baud rates are lost.
+ * <p>
+ * Closing the emulator stops its thread; wrap it in a port that does not
+ * forward {@link #close()} to keep its state across reconnections.
+ */
+public class EasyVREmulator extends CommPort {
+
+	private static final byte STS_SUCCESS = 'o';
+	private static final byte STS_INVALID = 'v';
+	private static final byte STS_TIMEOUT = 't';
+	private static final byte STS_ERROR = 'e';
+	private static final byte STS_RESULT = 'r';
+	private static final byte STS_SIMILAR = 's';
+	private static final byte STS_COUNT = 'c';
+	private static final byte STS_ID = 'x';
+	private static final byte STS_DUMP = 'd';
+
+	private static final int POWER_ON_BAUD_RATE = CommunicationHandler.DEFAULT_BAUD_RATE;
+	/** Time to complete a reset, in milliseconds */
+	private static final int RESET_TIME = 100;
+
+	private final int id;
+	private final boolean timed;
+	private final ScheduledExecutorService executor;
+
+	// the following fields are only accessed by the emulator thread
+	private final List<List<String>> groups = new ArrayList<>();
+	private final List<List<Integer>> training = new ArrayList<>();
+	private final ByteBuffer rx = ByteBuffer.allocate(256);
+	private final Queue<Byte> reply = new ArrayDeque<>();
+	private final Queue<int[]> recognitions = new ArrayDeque<>();
+	private final Queue<int[]> trainings = new ArrayDeque<>();
+	private boolean awaitingAck = false;
+	private ScheduledFuture<?> pending;
+	private int moduleBaudRate = POWER_ON_BAUD_RATE;
+	private volatile int hostBaudRate = POWER_ON_BAUD_RATE;
+	private volatile int maxBaudRate = Integer.MAX_VALUE;
+	private volatile int levelSD = 2;
+	private volatile int levelSI = 2;
+	private volatile int language = 0;
+	private volatile int timeout = 0;
+	private volatile int micDistance = 2;
+	private volatile int transmitDelay = 20;
+	private volatile int playbackTime = 0;
+	private volatile long commandCount = 0;
+
+	private volatile CommPortListener listener;
+	private volatile boolean open = true;
+
+	/**
+	 * Creates an emulator.
+	 *
+	 * @param id
+	 *            the device ID reported by the module (2 or higher for an
+	 *            EasyVR 3)
+	 * @param timed
+	 *            whether to simulate the transfer time of each byte at the
+	 *            current baud rate
+	 */
+	public EasyVREmulator(int id, boolean timed) {
+		this.id = id;
+		this.timed = timed;
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "EasyVR emulator");
+			t.setDaemon(true);
+			return t;
+		});
+		for (int g = 0; g < EasyVR.GROUPS; g++) {
+			groups.add(new ArrayList<>());
+			training.add(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * Queues the result of the next recognition.
+	 *
+	 * @param value
+	 *            the recognized position, or the negative error code
+	 * @param delayMillis
+	 *            the time from the recognition command to the result
+	 */
+	public void scriptRecognition(int value, int delayMillis) {
+		executor.execute(() -> recognitions.add(new int[] { value,
+				delayMillis }));
+	}
+
+	/**
+	 * Queues the outcome of the next training.
+	 *
+	 * @param result
+	 *            the training result
+	 * @param delayMillis
+	 *            the time from the training command to the result
+	 */
+	public void scriptTraining(TrainResult result, int delayMillis) {
+		executor.execute(() -> trainings.add(new int[] {
+				result.getOutcome().ordinal(), result.getValue(), delayMillis }));
+	}
+
+	/**
+	 * @param millis
+	 *            the duration of any sound playback
+	 */
+	public void setPlaybackTime(int millis) {
+		this.playbackTime = millis;
+	}
+
+	/**
+	 * Sets the baud rate of the module side, as if left there by a previous
+	 * connection.
+	 *
+	 * @param rate
+	 *            the baud rate
+	 */
+	public void setBaudRate(int rate) {
+		executor.execute(() -> moduleBaudRate = rate);
+	}
+
+	/**
+	 * Limits the baud rates the module actually switches to: requests for
+	 * higher rates are acknowledged, but the module stays at its current
+	 * rate.
+	 *
+	 * @param rate
+	 *            the highest baud rate
+	 */
+	public void setMaxBaudRate(int rate) {
+		this.maxBaudRate = rate;
+	}
+
+	/**
+	 * @return the baud rate of the module side
+	 */
+	public int getBaudRate() {
+		return call(() -> moduleBaudRate);
+	}
+
+	public int getLevel() {
+		return levelSD;
+	}
+
+	public int getKnob() {
+		return levelSI;
+	}
+
+	public int getLanguage() {
+		return language;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public int getMicDistance() {
+		return micDistance;
+	}
+
+	public int getTransmitDelay() {
+		return transmitDelay;
+	}
+
+	/**
+	 * @return the number of commands executed so far
+	 */
+	public long getCommandCount() {
+		return commandCount;
+	}
+
+	/**
+	 * @param group
+	 *            the group index
+	 * @return the labels of the custom commands of a group
+	 */
+	public List<String> getLabels(int group) {
+		return call(() -> new ArrayList<>(groups.get(group)));
+	}
+
+	/**
+	 * Adds a custom command directly to the table, e.g. to prepare a test.
+	 *
+	 * @param group
+	 *            the group index
+	 * @param label
+	 *            the label
+	 * @param trainCount
+	 *            the training count
+	 */
+	public void addCommand(int group, String label, int trainCount) {
+		executor.execute(() -> {
+			groups.get(group).add(Protocol.normalizeLabel(label));
+			training.get(group).add(trainCount);
+		});
+	}
+
+	private interface Call<T> {
+		T call();
+	}
+
+	private <T> T call(Call<T> call) {
+		try {
+			return executor.submit(call::call).get();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void setParams(int baudRate, int dataBits, int stopBits,
+			int parity, int flowControl) throws CommPortException {
+		hostBaudRate = baudRate;
+	}
+
+	@Override
+	public void setListener(CommPortListener listener)
+			throws CommPortException {
+		this.listener = listener;
+	}
+
+	@Override
+	public void removeListener() throws CommPortException {
+		this.listener = null;
+	}
+
+	@Override
+	public void writeBytes(byte[] bytes) throws CommPortException {
+		if (!open) {
+			throw new CommPortException("Port closed");
+		}
+		byte[] copy = bytes.clone();
+		int rate = hostBaudRate;
+		executor.schedule(() -> receive(copy, rate), byteNanos(rate)
+				* copy.length, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public int readBytes(byte[] b, int off, int len, int timeout)
+			throws CommPortException {
+		throw new CommPortException("Not supported, use a listener");
+	}
+
+	@Override
+	public void clear() throws CommPortException {
+	}
+
+	@Override
+	public void close() throws CommPortException {
+		open = false;
+		listener = null;
+		executor.shutdownNow();
+	}
+
+	private long byteNanos(int rate) {
+		return timed ? 10000000000L / rate : 0;
+	}
+
+	/**
+	 * Processes bytes written by the host.
+	 */
+	private void receive(byte[] bytes, int rate) {
+		if (rate != moduleBaudRate) {
+			return; // garbled
+		}
+		for (byte b : bytes) {
+			if (rx.position() == 0 && b == ' ') {
+				if (awaitingAck) {
+					awaitingAck = false;
+					sendNext();
+				}
+				continue;
+			}
+			rx.put(b);
+			int len = frameLength();
+			if (len > 0 && rx.position() >= len) {
+				byte[] frame = new byte[len];
+				rx.flip();
+				rx.get(frame);
+				rx.clear();
+				execute(frame);
+			} else if (len < 0 || !rx.hasRemaining()) {
+				rx.clear();
+				respond(STS_INVALID);
+			}
+		}
+	}
+
+	/**
+	 * @return the length of the frame being received, 0 if not known yet or
+	 *         -1 for unknown commands
+	 */
+	private int frameLength() {
+		int n = rx.position();
+		switch (rx.get(0)) {
+		case 'b':
+		case 'x':
+			return 1;
+		case 'a':
+		case 'c':
+		case 'd':
+		case 'i':
+		case 'l':
+		case 'o':
+		case 'v':
+		case 'y':
+			return 2;
+		case 'r':
+			return 2;
+		case 'e':
+		case 'g':
+		case 'p':
+		case 't':
+		case 'u':
+			return 3;
+		case 'k':
+			if (n < 2) {
+				return 0;
+			}
+			return (rx.get(1) == '@') ? 3 : 2;
+		case 'w':
+			if (n < 2) {
+				return 0;
+			}
+			return 4;
+		case 'n':
+			if (n < 4) {
+				return 0;
+			}
+			return 4 + Math.max(0, decodeArg(rx.get(3)));
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Executes a complete command frame.
+	 */
+	private void execute(byte[] f) {
+		commandCount++;
+		// any command interrupts recognition, playback and training
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+		reply.clear();
+		awaitingAck = false;
+		switch (f[0]) {
+		case 'b':
+			respond(STS_SUCCESS);
+			break;
+		case 'x':
+			respond(STS_ID, encodeArg(id));
+			break;
+		case 'a': {
+			int arg = decodeArg(f[1]);
+			if (arg <= 0) {
+				respond(STS_INVALID);
+				break;
+			}
+			respond(STS_SUCCESS);
+			// switch after the acknowledgement has been sent
+			int rate = 115200 / arg;
+			if (rate > maxBaudRate) {
+				break;
+			}
+			executor.schedule(() -> moduleBaudRate = rate,
+					2 * byteNanos(moduleBaudRate) + 1000000L,
+					TimeUnit.NANOSECONDS);
+			break;
+		}
+		case 'y':
+			transmitDelay = decodeArg(f[1]);
+			respond(STS_SUCCESS);
+			break;
+		case 'o':
+			timeout = decodeArg(f[1]);
+			respond(STS_SUCCESS);
+			break;
+		case 'v':
+			levelSD = decodeArg(f[1]);
+			respond(STS_SUCCESS);
+			break;
+		case 'l':
+			language = decodeArg(f[1]);
+			respond(STS_SUCCESS);
+			break;
+		case 'k':
+			if (f[1] == '@') {
+				micDistance = decodeArg(f[2]);
+			} else {
+				levelSI = decodeArg(f[1]);
+			}
+			respond(STS_SUCCESS);
+			break;
+		case 'c': {
+			List<String> g = group(f[1]);
+			if (g == null) {
+				respond(STS_INVALID);
+			} else {
+				respond(STS_COUNT, encodeArg((g.size() == 32) ? -1 : g
+						.size()));
+			}
+			break;
+		}
+		case 'p':
+			dump(f);
+			break;
+		case 'g': {
+			List<String> g = group(f[1]);
+			int p = decodeArg(f[2]);
+			if (g == null || p < 0 || p > g.size() || g.size() >= 32) {
+				respond(STS_INVALID);
+			} else {
+				g.add(p, "");
+				training.get(decodeArg(f[1])).add(p, 0);
+				respond(STS_SUCCESS);
+			}
+			break;
+		}
+		case 'n': {
+			List<String> g = group(f[1]);
+			int p = decodeArg(f[2]);
+			if (g == null || p < 0 || p >= g.size()) {
+				respond(STS_INVALID);
+			} else {
+				g.set(p, Protocol.decodeLabel(f, 4, f.length - 4));
+				respond(STS_SUCCESS);
+			}
+			break;
+		}
+		case 'u': {
+			List<String> g = group(f[1]);
+			int p = decodeArg(f[2]);
+			if (g == null || p < 0 || p >= g.size()) {
+				respond(STS_INVALID);
+			} else {
+				g.remove(p);
+				training.get(decodeArg(f[1])).remove(p);
+				respond(STS_SUCCESS);
+			}
+			break;
+		}
+		case 'e': {
+			List<String> g = group(f[1]);
+			int p = decodeArg(f[2]);
+			if (g == null || p < 0 || p >= g.size()) {
+				respond(STS_INVALID);
+			} else {
+				training.get(decodeArg(f[1])).set(p, 0);
+				respond(STS_SUCCESS);
+			}
+			break;
+		}
+		case 'r':
+			if (f[1] != 'R') {
+				respond(STS_INVALID);
+				break;
+			}
+			for (int g = 0; g < EasyVR.GROUPS; g++) {
+				groups.get(g).clear();
+				training.get(g).clear();
+			}
+			later(RESET_TIME, () -> respond(STS_SUCCESS));
+			break;
+		case 'w':
+			later(playbackTime, () -> respond(STS_SUCCESS));
+			break;
+		case 't':
+			train(f);
+			break;
+		case 'd':
+		case 'i':
+			recognize(f[0] == 'd');
+			break;
+		default:
+			respond(STS_INVALID);
+		}
+	}
+
+	private List<String> group(byte arg) {
+		int g = decodeArg(arg);
+		return (g >= 0 && g < EasyVR.GROUPS) ? groups.get(g) : null;
+	}
+
+	private void dump(byte[] f) {
+		List<String> g = group(f[1]);
+		int p = decodeArg(f[2]);
+		if (g == null || p < 0 || p >= g.size()) {
+			respond(STS_INVALID);
+			return;
+		}
+		int count = training.get(decodeArg(f[1])).get(p);
+		ByteBuffer out = ByteBuffer.allocate(4 + 2 * g.get(p).length());
+		out.put(STS_DUMP).put(encodeArg((count == 0) ? -1 : count)).put(
+				encodeArg(0)).put((byte) 0);
+		int len = Protocol.encodeLabel(g.get(p), out);
+		out.put(3, encodeArg(len));
+		byte[] bytes = new byte[out.position()];
+		out.flip();
+		out.get(bytes);
+		respond(bytes);
+	}
+
+	private void train(byte[] f) {
+		List<String> g = group(f[1]);
+		int p = decodeArg(f[2]);
+		if (g == null || p < 0 || p >= g.size()) {
+			respond(STS_INVALID);
+			return;
+		}
+		List<Integer> counts = training.get(decodeArg(f[1]));
+		int[] outcome = trainings.poll();
+		if (outcome == null) {
+			outcome = new int[] { TrainResult.Outcome.TRAINED.ordinal(), 0,
+					0 };
+		}
+		int value = outcome[1];
+		switch (TrainResult.Outcome.values()[outcome[0]]) {
+		case TRAINED:
+			later(outcome[2], () -> {
+				counts.set(p, Math.min(counts.get(p) + 1, 7));
+				respond(STS_SUCCESS);
+			});
+			break;
+		case SIMILAR_TO_SD:
+			later(outcome[2], () -> respond(STS_RESULT, encodeArg(value)));
+			break;
+		case SIMILAR_TO_SI:
+			later(outcome[2], () -> respond(STS_SIMILAR, encodeArg(value)));
+			break;
+		default:
+			later(outcome[2], () -> respond(STS_ERROR, encodeArg(value / 16),
+					encodeArg(value % 16)));
+		}
+	}
+
+	private void recognize(boolean speakerDependent) {
+		int[] result = recognitions.poll();
+		if (result == null) {
+			if (timeout > 0) {
+				later(timeout * 1000, () -> respond(STS_TIMEOUT));
+			}
+			// otherwise listen until interrupted
+			return;
+		}
+		int value = result[0];
+		if (value >= 0) {
+			later(result[1], () -> respond(speakerDependent ? STS_RESULT
+					: STS_SIMILAR, encodeArg(value)));
+		} else {
+			later(result[1], () -> respond(STS_ERROR, encodeArg(-value / 16),
+					encodeArg(-value % 16)));
+		}
+	}
+
+	private void later(int millis, Runnable action) {
+		pending = executor.schedule(() -> {
+			pending = null;
+			action.run();
+		}, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts sending a reply. Bytes after the first are sent as the host
+	 * acknowledges the previous one.
+	 */
+	private void respond(byte... bytes) {
+		reply.clear();
+		for (byte b : bytes) {
+			reply.add(b);
+		}
+		sendNext();
+	}
+
+	private void sendNext() {
+		Byte b = reply.poll();
+		if (b == null) {
+			return;
+		}
+		awaitingAck = true;
+		int rate = moduleBaudRate;
+		byte[] data = { b };
+		executor.schedule(() -> {
+			CommPortListener l = listener;
+			if (open && l != null && rate == hostBaudRate) {
+				l.onRead(data);
+			}
+		}, byteNanos(rate), TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,64 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EasyVRTest {
+
+	private EasyVREmulator emulator;
+	private EasyVR driver;
+
+	@Before
+	public void setUp() {
+		emulator = new EasyVREmulator(2, false);
+		driver = new EasyVR("test");
+		driver.setPortFactory(portName -> emulator);
+	}
+
+	@After
+	public void tearDown() {
+		driver.onQuit();
+	}
+
+	/**
+	 * Checks that the module answers at the negotiated rate.
+	 */
+	private void assertConnected() throws Exception {
+		assertEquals(0, (int) driver.getCommandCountAsync(1).get(5,
+				TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void negotiatesDefaultBaudRate() throws Exception {
+		assertTrue(driver.init(new MapConfig().set("serial_port",
+				"emulator")));
+		assertEquals(115200, emulator.getBaudRate());
+		assertConnected();
+	}
+
+	@Test
+	public void fallsBackWhenModuleDoesNotAnswerAtNewRate() throws Exception {
+		emulator.setMaxBaudRate(9600);
+		// a single higher rate to try keeps the test short, each failed
+		// attempt waits for two reply timeouts
+		assertTrue(driver.init(new MapConfig().set("serial_port", "emulator")
+				.set("baud_rate", 19200)));
+		assertEquals(9600, emulator.getBaudRate());
+		assertConnected();
+	}
+
+	@Test
+	public void findsModuleLeftAtAnotherRate() throws Exception {
+		emulator.setBaudRate(38400);
+		assertTrue(driver.init(new MapConfig().set("serial_port",
+				"emulator")));
+		assertEquals(115200, emulator.getBaudRate());
+		assertConnected();
+	}
+}
@@ -0,0 +1,140 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import cc.sferalabs.sfera.drivers.easyvr.EventDispatcher.Policy;
+import cc.sferalabs.sfera.drivers.easyvr.events.RecogSIEvent;
+import cc.sferalabs.sfera.events.Event;
+
+public class EventDispatcherTest {
+
+	private static final int CAPACITY = 4;
+
+	private final BlockingQueue<Event> delivered = new LinkedBlockingQueue<>();
+	/** Counted down by the subscriber when it receives the first event */
+	private final CountDownLatch stalled = new CountDownLatch(1);
+	/** Counted down to let the subscriber return */
+	private final CountDownLatch release = new CountDownLatch(1);
+	private EventDispatcher dispatcher;
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		dispatcher.close();
+	}
+
+	/**
+	 * Creates a dispatcher whose subscriber is stuck on a first event, so
+	 * that the following ones fill the queue.
+	 */
+	private void stall(Policy policy) throws InterruptedException {
+		dispatcher = new EventDispatcher(CAPACITY, policy,
+				LoggerFactory.getLogger(EventDispatcherTest.class), e -> {
+					delivered.add(e);
+					stalled.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				});
+		dispatcher.post(event(0, 0));
+		assertTrue(stalled.await(1, TimeUnit.SECONDS));
+	}
+
+	private static Event event(int group, int value) {
+		return new RecogSIEvent(null, group, value);
+	}
+
+	private Event next() throws InterruptedException {
+		return delivered.poll(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void dropOldestDiscardsOldestEvents() throws Exception {
+		stall(Policy.DROP_OLDEST);
+		for (int i = 1; i <= CAPACITY + 2; i++) {
+			dispatcher.post(event(0, i));
+		}
+		assertEquals(CAPACITY, dispatcher.getQueueDepth());
+		assertEquals(2, dispatcher.getDropped());
+		release.countDown();
+		assertEquals(0, next().getValue());
+		for (int i = 3; i <= CAPACITY + 2; i++) {
+			assertEquals(i, next().getValue());
+		}
+		assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void coalesceReplacesEventWithSameId() throws Exception {
+		stall(Policy.COALESCE);
+		for (int i = 1; i <= CAPACITY; i++) {
+			dispatcher.post(event(i, i));
+		}
+		dispatcher.post(event(2, 20));
+		// no event with the ID of group 5 is queued, the oldest is discarded
+		dispatcher.post(event(5, 50));
+		assertEquals(2, dispatcher.getDropped());
+		release.countDown();
+		assertEquals(0, next().getValue());
+		assertEquals(20, next().getValue());
+		assertEquals(3, next().getValue());
+		assertEquals(4, next().getValue());
+		assertEquals(50, next().getValue());
+		assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void blockWaitsForRoom() throws Exception {
+		stall(Policy.BLOCK);
+		for (int i = 1; i <= CAPACITY; i++) {
+			dispatcher.post(event(0, i));
+		}
+		Thread poster = new Thread(() -> {
+			try {
+				dispatcher.post(event(0, CAPACITY + 1));
+			} catch (InterruptedException e) {
+			}
+		});
+		poster.start();
+		poster.join(200);
+		assertTrue(poster.isAlive());
+		release.countDown();
+		poster.join(1000);
+		assertFalse(poster.isAlive());
+		assertEquals(0, dispatcher.getDropped());
+		for (int i = 0; i <= CAPACITY + 1; i++) {
+			assertEquals(i, next().getValue());
+		}
+	}
+
+	@Test
+	public void defaultPolicyNeverBlocksThePoster() throws Exception {
+		stall(EventDispatcher.DEFAULT_POLICY);
+		Thread poster = new Thread(() -> {
+			try {
+				for (int i = 1; i <= CAPACITY * 100; i++) {
+					dispatcher.post(event(i % 16, i));
+				}
+			} catch (InterruptedException e) {
+			}
+		});
+		poster.start();
+		poster.join(1000);
+		assertFalse(poster.isAlive());
+		assertEquals(CAPACITY, dispatcher.getQueueDepth());
+	}
+}
@@ -0,0 +1,180 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import cc.sferalabs.sfera.io.comm.CommPort;
+import cc.sferalabs.sfera.io.comm.CommPortException;
+import cc.sferalabs.sfera.io.comm.CommPortListener;
+import cc.sferalabs.sfera.io.comm.CommPortTimeoutException;
+
+/**
+ * Comm port wrapping another one, typically an {@link EasyVREmulator}, and
+ * injecting the faults of a {@link Fault} type on request.
+ */
+class FaultInjectionPort extends CommPort implements CommPortListener {
+
+	/**
+	 * The faults that can be injected.
+	 */
+	enum Fault {
+		/** The next acknowledgements written by the host are lost */
+		DROPPED_ACKS,
+		/** Random bytes are received, as from line noise */
+		STRAY_BYTES,
+		/** Bytes from the module are delivered late for a while */
+		DELAYED_REPLIES,
+		/** The port disappears for a while, as if unplugged */
+		DISCONNECT
+	}
+
+	private final CommPort port;
+	private final ScheduledExecutorService executor;
+	private volatile CommPortListener listener;
+	private volatile int acksToDrop = 0;
+	private volatile long delayUntil = 0;
+	private volatile int delayMillis = 0;
+	private volatile long disconnectedUntil = 0;
+
+	/**
+	 *
+	 * @param port
+	 *            the wrapped port
+	 */
+	FaultInjectionPort(CommPort port) {
+		this.port = port;
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "EasyVR faults");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Injects a fault.
+	 *
+	 * @param fault
+	 *            the fault type
+	 * @param millis
+	 *            the duration of the delayed replies and disconnect faults
+	 */
+	void inject(Fault fault, int millis) {
+		long now = System.nanoTime();
+		switch (fault) {
+		case DROPPED_ACKS:
+			acksToDrop = 1 + ThreadLocalRandom.current().nextInt(3);
+			break;
+		case STRAY_BYTES:
+			byte[] noise = new byte[1 + ThreadLocalRandom.current().nextInt(4)];
+			ThreadLocalRandom.current().nextBytes(noise);
+			executor.execute(() -> deliver(noise));
+			break;
+		case DELAYED_REPLIES:
+			delayMillis = EasyVR.RESPONSE_TIMEOUT / 2
+					+ ThreadLocalRandom.current().nextInt(
+							EasyVR.RESPONSE_TIMEOUT);
+			delayUntil = now + millis * 1000000L;
+			break;
+		case DISCONNECT:
+			disconnectedUntil = now + millis * 1000000L;
+			CommPortListener l = listener;
+			if (l != null) {
+				executor.execute(() -> l.onError(new CommPortException(
+						"Port disconnected")));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the port is currently disconnected
+	 */
+	boolean isDisconnected() {
+		return System.nanoTime() - disconnectedUntil < 0;
+	}
+
+	@Override
+	public void setParams(int baudRate, int dataBits, int stopBits,
+			int parity, int flowControl) throws CommPortException {
+		checkConnected();
+		port.setParams(baudRate, dataBits, stopBits, parity, flowControl);
+	}
+
+	@Override
+	public void setListener(CommPortListener listener)
+			throws CommPortException {
+		this.listener = listener;
+		port.setListener(this);
+	}
+
+	@Override
+	public void removeListener() throws CommPortException {
+		this.listener = null;
+		port.removeListener();
+	}
+
+	@Override
+	public void writeBytes(byte[] bytes) throws CommPortException {
+		checkConnected();
+		if (acksToDrop > 0 && bytes.length == 1 && bytes[0] == ' ') {
+			acksToDrop--;
+			return;
+		}
+		port.writeBytes(bytes);
+	}
+
+	@Override
+	public int readBytes(byte[] b, int off, int len, int timeout)
+			throws CommPortException, CommPortTimeoutException {
+		checkConnected();
+		return port.readBytes(b, off, len, timeout);
+	}
+
+	@Override
+	public void clear() throws CommPortException {
+		port.clear();
+	}
+
+	@Override
+	public void close() throws CommPortException {
+		listener = null;
+		port.removeListener();
+		executor.shutdownNow();
+	}
+
+	private void checkConnected() throws CommPortException {
+		if (isDisconnected()) {
+			throw new CommPortException("Port disconnected");
+		}
+	}
+
+	@Override
+	public void onRead(byte[] bytes) {
+		if (isDisconnected()) {
+			return;
+		}
+		if (System.nanoTime() - delayUntil < 0) {
+			executor.schedule(() -> deliver(bytes), delayMillis,
+					TimeUnit.MILLISECONDS);
+		} else {
+			deliver(bytes);
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		CommPortListener l = listener;
+		if (l != null) {
+			l.onError(t);
+		}
+	}
+
+	private void deliver(byte[] bytes) {
+		CommPortListener l = listener;
+		if (l != null) {
+			l.onRead(bytes);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Driver configuration backed by a map, for initializing an {@link EasyVR}
+ * outside of the Sfera runtime.
+ */
+class MapConfig implements EasyVR.ConfigSource {
+
+	private final Map<String, Object> values = new HashMap<>();
+
+	/**
+	 * Sets a configuration value.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @return this configuration
+	 */
+	MapConfig set(String key, Object value) {
+		values.put(key, value);
+		return this;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T get(String key, T defaultValue) {
+		Object value = values.get(key);
+		return (value == null) ? defaultValue : (T) value;
+	}
+}
@@ -0,0 +1,66 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ProtocolTest {
+
+	@Test
+	public void argumentsRoundTrip() {
+		for (int i = -1; i <= 31; i++) {
+			assertEquals(i, Protocol.decodeArg(Protocol.encodeArg(i)));
+		}
+		assertEquals('A', Protocol.encodeArg(0));
+		assertEquals('@', Protocol.encodeArg(-1));
+	}
+
+	@Test
+	public void labelsRoundTrip() {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		int len = Protocol.encodeLabel("LIGHTS_ON", buf);
+		assertEquals(9, len);
+		assertEquals("LIGHTS_ON", Protocol.decodeLabel(buf.array(), 0, len));
+	}
+
+	@Test
+	public void digitsAreEscaped() {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		int len = Protocol.encodeLabel("ROOM12", buf);
+		assertEquals(8, len);
+		assertEquals('^', buf.get(4));
+		assertEquals(Protocol.encodeArg(1), buf.get(5));
+		assertEquals("ROOM12", Protocol.decodeLabel(buf.array(), 0, len));
+	}
+
+	@Test
+	public void invalidCharactersAreDropped() {
+		assertEquals("ROOM12", Protocol.normalizeLabel("ROOM 12"));
+	}
+
+	@Test
+	public void escapedValuesOutsideDigitsArePrinted() {
+		byte[] label = { 'A', '^', Protocol.encodeArg(42), '^',
+				Protocol.encodeArg(-3), '^', (byte) 0xFF };
+		assertEquals("A42-3-66", Protocol.decodeLabel(label, 0,
+				label.length));
+	}
+
+	@Test
+	public void labelLengthCountsEscapes() {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		String label = "ROOM 12_B";
+		assertEquals(Protocol.encodeLabel(label, buf), Protocol
+				.labelLength(label));
+	}
+
+	@Test
+	public void longestEscapesFit() {
+		byte[] label = { '^', (byte) 0x80, '^', (byte) 0x90 };
+		assertEquals("-193", Protocol.decodeLabel(label, 0, 2));
+		assertEquals("-193-177", Protocol.decodeLabel(label, 0,
+				label.length));
+	}
+}
@@ -0,0 +1,89 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultMergerTest {
+
+	private static final long WINDOW = 100;
+
+	private ScheduledExecutorService timer;
+	private BlockingQueue<String> results;
+	private ResultMerger merger;
+
+	@Before
+	public void setUp() {
+		timer = Executors.newSingleThreadScheduledExecutor();
+		results = new LinkedBlockingQueue<>();
+		merger = new ResultMerger(3, WINDOW, timer, (sd, group, value,
+				label) -> results.add(sd + " " + group + " " + value + " "
+				+ label));
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+	}
+
+	private String next() throws InterruptedException {
+		return results.poll(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void deliversFirstValidResult() throws Exception {
+		merger.offer(true, 1, -0x11, null);
+		merger.offer(true, 1, 2, "ON");
+		assertEquals("true 1 2 ON", next());
+		merger.offer(true, 1, 3, "OFF");
+		Thread.sleep(2 * WINDOW);
+		assertNull(results.poll());
+	}
+
+	@Test
+	public void deliversErrorWhenAllModulesFail() throws Exception {
+		merger.offer(false, 2, -0x11, null);
+		merger.offer(false, 2, -0x12, null);
+		assertNull(results.poll());
+		merger.offer(false, 2, -0x13, null);
+		assertEquals("false 2 -17 null", results.poll());
+	}
+
+	@Test
+	public void deliversErrorWhenWindowExpires() throws Exception {
+		merger.offer(false, 2, -0x11, null);
+		assertEquals("false 2 -17 null", next());
+	}
+
+	@Test
+	public void dropsLateResults() throws Exception {
+		merger.offer(true, 1, 2, "ON");
+		assertEquals("true 1 2 ON", next());
+		Thread.sleep(WINDOW + WINDOW / 2);
+		// the two modules that did not report in the expired window
+		merger.offer(true, 1, 2, "ON");
+		merger.offer(true, 1, 2, "ON");
+		// a new utterance
+		merger.offer(true, 1, 3, "OFF");
+		assertEquals("true 1 3 OFF", next());
+		assertNull(results.poll(2 * WINDOW, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void opensNewWindowAfterGracePeriod() throws Exception {
+		merger.offer(true, 1, 2, "ON");
+		assertEquals("true 1 2 ON", next());
+		Thread.sleep(3 * WINDOW);
+		merger.offer(true, 1, 3, "OFF");
+		assertEquals("true 1 3 OFF", next());
+	}
+}
@@ -0,0 +1,338 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import cc.sferalabs.sfera.drivers.easyvr.FaultInjectionPort.Fault;
+import cc.sferalabs.sfera.io.comm.CommPort;
+import cc.sferalabs.sfera.io.comm.CommPortException;
+
+/**
+ * Long-running load test of an {@link EasyVR} driver connected to an
+ * {@link EasyVREmulator}. Several threads issue commands as fast as the
+ * driver accepts them while faults are periodically injected between the
+ * driver and the emulator; the driver's own supervisor detects the failures
+ * and reconnects, restoring the previous state.
+ * <p>
+ * At every report interval and at the end the test prints the sustained
+ * command rate, the latency of each command type as seen by the callers,
+ * the time the link took to recover from each fault type and the growth of
+ * the used heap since the start.
+ * <p>
+ * The harness is not run by the build. Usage, with the test classpath:
+ *
+ * <pre>
+ * java cc.sferalabs.sfera.drivers.easyvr.SoakHarness [-threads n]
+ *     [-duration seconds] [-faults seconds] [-timed]
+ * </pre>
+ */
+public class SoakHarness {
+
+	/** Duration of the delayed replies and disconnect faults */
+	private static final int FAULT_DURATION = 3000;
+	/** Maximum time to wait for a caller's command */
+	private static final int COMMAND_TIMEOUT = 10000;
+	/** Maximum time to wait for the recovery from a fault */
+	private static final int RECOVERY_TIMEOUT = 60000;
+	private static final int REPORT_INTERVAL = 10000;
+
+	private final int threads;
+	private final int durationMillis;
+	private final int faultIntervalMillis;
+	private final EasyVREmulator emulator;
+	private final EasyVR driver;
+	private final Metrics latencies = new Metrics();
+	private final Metrics recoveries = new Metrics();
+	private final LongAdder commands = new LongAdder();
+	private final LongAdder reconnections = new LongAdder();
+	/** Time the last fault was injected */
+	private final AtomicLong faultNanos = new AtomicLong();
+	/** Completion time of the first successful command after the last fault */
+	private final AtomicLong recoveredNanos = new AtomicLong();
+	/** The port last opened by the driver */
+	private volatile FaultInjectionPort port;
+	private volatile boolean running;
+
+	/**
+	 *
+	 * @param threads
+	 *            the number of caller threads
+	 * @param durationMillis
+	 *            the test duration
+	 * @param faultIntervalMillis
+	 *            the time between faults, 0 for none
+	 * @param timed
+	 *            whether the emulator simulates the serial transfer time
+	 */
+	public SoakHarness(int threads, int durationMillis, int faultIntervalMillis,
+			boolean timed) {
+		this.threads = threads;
+		this.durationMillis = durationMillis;
+		this.faultIntervalMillis = faultIntervalMillis;
+		this.emulator = new EasyVREmulator(2, timed);
+		this.driver = new EasyVR("soak");
+		driver.setPortFactory(this::open);
+		for (int g = 1; g <= 4; g++) {
+			for (int p = 0; p < 8; p++) {
+				emulator.addCommand(g, "CMD_" + g + "_" + p, p % 4);
+			}
+		}
+	}
+
+	/**
+	 * Runs the test.
+	 *
+	 * @param out
+	 *            the stream to print the reports to
+	 * @return {@code true} if the link recovered from all the faults
+	 * @throws InterruptedException
+	 */
+	public boolean run(PrintStream out) throws InterruptedException {
+		if (!driver.init(new MapConfig().set("serial_port", "emulator"))) {
+			out.println("Cannot connect to the emulator");
+			return false;
+		}
+		reconnections.reset();
+		long baseline = usedHeap();
+		long start = System.nanoTime();
+		running = true;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(this::work, "EasyVR soak " + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		Thread supervisor = new Thread(this::supervise,
+				"EasyVR soak supervisor");
+		supervisor.setDaemon(true);
+		supervisor.start();
+
+		boolean recovered = true;
+		Fault[] faults = Fault.values();
+		int nextFault = 0;
+		long nextReport = start + REPORT_INTERVAL * 1000000L;
+		long nextFaultTime = start + faultIntervalMillis * 1000000L;
+		long end = start + durationMillis * 1000000L;
+		while (System.nanoTime() - end < 0) {
+			long now = System.nanoTime();
+			if (faultIntervalMillis > 0 && now - nextFaultTime >= 0) {
+				Fault fault = faults[nextFault++ % faults.length];
+				recovered &= injectAndAwaitRecovery(fault, out);
+				nextFaultTime = System.nanoTime() + faultIntervalMillis
+						* 1000000L;
+			}
+			if (now - nextReport >= 0) {
+				report(out, start, baseline);
+				nextReport += REPORT_INTERVAL * 1000000L;
+			}
+			Thread.sleep(100);
+		}
+
+		running = false;
+		for (Thread w : workers) {
+			w.join(COMMAND_TIMEOUT);
+		}
+		supervisor.join(COMMAND_TIMEOUT);
+		driver.onQuit();
+		out.println("Final report:");
+		report(out, start, baseline);
+		return recovered;
+	}
+
+	/**
+	 * Injects a fault and waits for a command issued afterwards to succeed.
+	 *
+	 * @return {@code true} if the link recovered in time
+	 */
+	private boolean injectAndAwaitRecovery(Fault fault, PrintStream out)
+			throws InterruptedException {
+		long t0 = System.nanoTime();
+		recoveredNanos.set(0);
+		faultNanos.set(t0);
+		port.inject(fault, FAULT_DURATION);
+		long deadline = t0 + RECOVERY_TIMEOUT * 1000000L;
+		long recovered;
+		while ((recovered = recoveredNanos.get()) == 0
+				&& System.nanoTime() - deadline < 0) {
+			Thread.sleep(10);
+		}
+		CommandMetrics m = recoveries.get(fault.name());
+		if (recovered == 0) {
+			m.timeout();
+			out.println("No recovery from " + fault + " within "
+					+ RECOVERY_TIMEOUT + "ms");
+			return false;
+		}
+		m.record(recovered - t0, true);
+		return true;
+	}
+
+	/**
+	 * Issues random commands until the test ends.
+	 */
+	private void work() {
+		while (running) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int group = 1 + random.nextInt(4);
+			String name;
+			CompletableFuture<?> command;
+			// breaks cancel all the queued commands, keep them rare
+			int op = random.nextInt(64);
+			switch ((op < 63) ? op % 6 : 6) {
+			case 0:
+				name = "countSD";
+				command = driver.getCommandCountAsync(group);
+				break;
+			case 1:
+				name = "dumpSD";
+				command = driver.getCommandInfoAsync(group,
+						random.nextInt(8));
+				break;
+			case 2:
+				name = "levelSD";
+				command = driver.setLevelAsync(1 + random.nextInt(5));
+				break;
+			case 3:
+				name = "levelSI";
+				command = driver.setKnobAsync(1 + random.nextInt(5));
+				break;
+			case 4:
+				name = "timeout";
+				command = driver.setTimeoutAsync(random.nextInt(5));
+				break;
+			case 5:
+				name = "playSX";
+				command = driver.playSoundAsync(0, 1 + random.nextInt(30));
+				break;
+			default:
+				name = "break";
+				command = driver.stopAsync();
+			}
+			long started = System.nanoTime();
+			boolean ok;
+			try {
+				Object result = command.get(COMMAND_TIMEOUT,
+						TimeUnit.MILLISECONDS);
+				ok = result != null && !Boolean.FALSE.equals(result)
+						&& !Integer.valueOf(-1).equals(result);
+			} catch (TimeoutException e) {
+				command.cancel(false);
+				latencies.get(name).timeout();
+				ok = false;
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				ok = false;
+			}
+			long now = System.nanoTime();
+			latencies.get(name).record(now - started, ok);
+			commands.increment();
+			// settings commands may complete without any I/O, only count
+			// recovery on a round trip
+			long fault = faultNanos.get();
+			if (ok && "countSD".equals(name) && fault != 0 && started - fault > 0) {
+				recoveredNanos.compareAndSet(0, now);
+			}
+			if (!ok) {
+				// avoid spinning on a failed handler
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the driver's supervisor as the Sfera runtime does.
+	 */
+	private void supervise() {
+		try {
+			while (running) {
+				driver.loop();
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Opens a new port on the emulator for the driver, failing while the
+	 * last one is disconnected.
+	 */
+	private CommPort open(String portName) throws CommPortException {
+		FaultInjectionPort last = port;
+		if (last != null) {
+			if (last.isDisconnected()) {
+				throw new CommPortException("Port disconnected");
+			}
+			reconnections.increment();
+		}
+		port = new FaultInjectionPort(emulator);
+		return port;
+	}
+
+	private void report(PrintStream out, long start, long baseline) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long count = commands.sum();
+		out.printf("%.0fs: %d commands, %.1f commands/s, %d reconnections, "
+				+ "heap growth %d KB%n", seconds, count, count / seconds,
+				reconnections.sum(), (usedHeap() - baseline) / 1024);
+		out.println(" Latencies:");
+		for (CommandStats stats : latencies.snapshot()) {
+			out.println("  " + stats);
+		}
+		CommandStats[] recovery = recoveries.snapshot();
+		if (recovery.length > 0) {
+			out.println(" Recovery times:");
+			for (CommandStats stats : recovery) {
+				out.println("  " + stats);
+			}
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = 8;
+		int duration = 60;
+		int faults = 5;
+		boolean timed = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "-duration":
+					duration = Integer.parseInt(args[++i]);
+					break;
+				case "-faults":
+					faults = Integer.parseInt(args[++i]);
+					break;
+				case "-timed":
+					timed = true;
+					break;
+				default:
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Usage: SoakHarness [-threads n] "
+					+ "[-duration seconds] [-faults seconds] [-timed]");
+			System.exit(1);
+		}
+		SoakHarness harness = new SoakHarness(threads, duration * 1000,
+				faults * 1000, timed);
+		System.exit(harness.run(System.out) ? 0 : 1);
+	}
+}
@@ -0,0 +1,70 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class TraceReplayTest {
+
+	@Test
+	public void replaysRecordedSession() throws Exception {
+		WireTrace trace = new WireTrace(4096);
+		EasyVREmulator emulator = new EasyVREmulator(2, true);
+		CommunicationHandler handler = new CommunicationHandler(null,
+				emulator, LoggerFactory.getLogger(TraceReplayTest.class),
+				trace);
+		handler.start();
+		try {
+			assertTrue(handler.commandHandshake(5000).get());
+			assertEquals(2, (int) handler.commandID().get());
+			assertTrue(handler.commandTimeout(5).get());
+			assertTrue(handler.commandLevelSD(3).get());
+			assertTrue(handler.commandAddSD(1, 0, "LIGHTS_ON").get());
+			assertEquals(1, (int) handler.commandCountSD(1).get());
+			assertEquals("LIGHTS_ON", handler.commandDumpSD(1, 0).get()
+					.getLabel());
+			assertEquals(TrainResult.TRAINED, handler.commandTrainSD(1, 0)
+					.get());
+			emulator.scriptRecognition(0, 20);
+			emulator.scriptRecognition(-0x11, 20);
+			handler.setContinuous(true, 1, true);
+			assertTrue(handler.commandRecogSD(1).get());
+			Thread.sleep(200);
+			assertTrue(handler.commandBreak().get());
+			assertTrue(handler.commandRemoveSD(1, 0).get());
+		} finally {
+			handler.close();
+			emulator.close();
+		}
+
+		Path file = Files.createTempFile("easyvr", ".evrw");
+		try {
+			trace.dump(file);
+			ByteBuffer records = WireTrace.read(file);
+			int frames = 0;
+			for (int i = 0; i < records.capacity(); i +=
+					WireTrace.RECORD_SIZE) {
+				if (records.get(i + 8) == (WireTrace.TX | WireTrace.START)) {
+					assertNotEquals(' ', records.get(i + 9));
+					frames++;
+				}
+			}
+			assertTrue(frames > 0);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			boolean replayed = new TraceReplay(file, true)
+					.replay(new PrintStream(out, true));
+			assertTrue(out.toString(), replayed);
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
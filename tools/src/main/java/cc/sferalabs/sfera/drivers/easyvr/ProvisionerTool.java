@@ -0,0 +1,90 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line front end of {@link Provisioner}: prints the report of each
+ * port, exiting with status 1 if any of them failed.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * java -cp target/easyvr-tools.jar cc.sferalabs.sfera.drivers.easyvr.ProvisionerTool
+ *     [-j workers] [-level n] [-knob n] [-language n] [-baud n] snapshot port...
+ * </pre>
+ */
+public class ProvisionerTool {
+
+	private static final String USAGE = "Usage: ProvisionerTool [-j workers] "
+			+ "[-level n] [-knob n] [-language n] [-baud n] snapshot port...";
+
+	public static void main(String[] args) throws Exception {
+		int workers = Runtime.getRuntime().availableProcessors();
+		SettingsProfile settings = new SettingsProfile();
+		int baudRate = 115200;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				exit("Missing value of option " + args[i]);
+			}
+			int value = -1;
+			try {
+				value = Integer.parseInt(args[i + 1]);
+			} catch (NumberFormatException e) {
+			}
+			if (value < 0) {
+				exit("Invalid value of option " + args[i] + ": " + args[i + 1]);
+			}
+			switch (args[i]) {
+			case "-j":
+				if (value < 1) {
+					exit("At least one worker is required");
+				}
+				workers = value;
+				break;
+			case "-level":
+				settings.setLevel(value);
+				break;
+			case "-knob":
+				settings.setKnob(value);
+				break;
+			case "-language":
+				settings.setLanguage(value);
+				break;
+			case "-baud":
+				baudRate = value;
+				break;
+			default:
+				exit("Unknown option " + args[i]);
+			}
+		}
+		if (args.length - i < 2) {
+			exit(null);
+		}
+		Provisioner provisioner = new Provisioner(Paths.get(args[i]),
+				settings, workers, baudRate);
+		List<String> ports = new ArrayList<>();
+		for (i++; i < args.length; i++) {
+			ports.add(args[i]);
+		}
+		boolean success = true;
+		for (Provisioner.Report report : provisioner.provision(ports)) {
+			System.out.println(report);
+			success &= report.isSuccess();
+		}
+		System.exit(success ? 0 : 1);
+	}
+
+	/**
+	 * Prints an error, if any, and the usage, then exits with status 1.
+	 */
+	private static void exit(String error) {
+		if (error != null) {
+			System.err.println(error);
+		}
+		System.err.println(USAGE);
+		System.exit(1);
+	}
+}
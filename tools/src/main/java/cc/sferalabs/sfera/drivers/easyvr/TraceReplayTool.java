@@ -0,0 +1,33 @@
+package cc.sferalabs.sfera.drivers.easyvr;
+
+import java.nio.file.Paths;
+
+/**
+ * Command line front end of {@link TraceReplay}: prints the recorded
+ * latencies of a trace, then replays it, exiting with status 1 if the
+ * replay did not match the trace.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -cp target/easyvr-tools.jar cc.sferalabs.sfera.drivers.easyvr.TraceReplayTool [-fast] trace
+ * </pre>
+ */
+public class TraceReplayTool {
+
+	public static void main(String[] args) throws Exception {
+		boolean realTime = true;
+		int i = 0;
+		if (i < args.length && args[i].equals("-fast")) {
+			realTime = false;
+			i++;
+		}
+		if (args.length - i != 1) {
+			System.err.println("Usage: TraceReplayTool [-fast] trace");
+			System.exit(1);
+		}
+		TraceReplay replay = new TraceReplay(Paths.get(args[i]), realTime);
+		replay.analyze(System.out);
+		System.exit(replay.replay(System.out) ? 0 : 1);
+	}
+}